@@ -0,0 +1,203 @@
+package chatserver;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the fan-out of a single public message to all online users.
+ * <ul>
+ * <li>{@code printWriterPerRecipient}: the original fan-out, one autoflushing
+ * {@link PrintWriter} per recipient,</li>
+ * <li>{@code encodePerRecipient}: every recipient encodes the line into its own
+ * buffer before it is queued,</li>
+ * <li>{@code encodeOnce}: the line is encoded once and every recipient queues a
+ * view of the same read-only buffer,</li>
+ * <li>{@code registryFanOut}: the path of {@code !send} in the server, the
+ * message is prefixed with the sender by {@link Chatserver#prefixLines} and
+ * queued for every session of the current {@link PresenceRegistry} snapshot.</li>
+ * </ul>
+ * Each invocation delivers one message to every recipient, including draining
+ * the outbound queues into a sink channel.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+	@Param({ "10", "1000", "10000" })
+	public int recipients;
+
+	private final String line = "alice.vienna.at: anyone up for lunch at the usual place? \u00e4\u00f6\u00fc";
+
+	private final String text = "anyone up for lunch at the usual place? \u00e4\u00f6\u00fc";
+
+	private PrintWriter[] writers;
+	private OutboundQueue[] queues;
+	private PresenceRegistry registry;
+	private Session sender;
+	private byte[] prefix;
+	private List<ByteBuffer> batch;
+	private NullChannel sink;
+
+	@Setup
+	public void setUp() {
+		sink = new NullChannel();
+		batch = new ArrayList<>();
+		writers = new PrintWriter[recipients];
+		queues = new OutboundQueue[recipients];
+		OutboundPolicy policy = new OutboundPolicy(1024, 64,
+				OutboundPolicy.Overflow.DROP_OLDEST);
+		for (int i = 0; i < recipients; i++) {
+			writers[i] = new PrintWriter(new OutputStreamWriter(sink.stream,
+					ClientConnection.CHARSET), true);
+			queues[i] = new OutboundQueue(policy);
+		}
+
+		registry = new PresenceRegistry();
+		for (int i = 0; i < recipients; i++) {
+			Session session = new Session("user" + i, new QueueConnection(queues[i]));
+			registry.reserve(session);
+			registry.activate(session);
+		}
+		sender = new Session("alice.vienna.at", new QueueConnection(new OutboundQueue(policy)));
+		prefix = (sender.getName() + ": ").getBytes(ClientConnection.CHARSET);
+	}
+
+	@Benchmark
+	public long printWriterPerRecipient() {
+		for (PrintWriter writer : writers) {
+			writer.println(line);
+		}
+		return sink.bytes;
+	}
+
+	@Benchmark
+	public long encodePerRecipient() throws Exception {
+		for (OutboundQueue queue : queues) {
+			queue.offer(ClientConnection.CHARSET.encode(line + "\n"));
+		}
+		return drain();
+	}
+
+	@Benchmark
+	public long encodeOnce() throws Exception {
+		ByteBuffer message = ClientConnection.CHARSET.encode(line + "\n")
+				.asReadOnlyBuffer();
+		for (OutboundQueue queue : queues) {
+			queue.offer(message.duplicate());
+		}
+		return drain();
+	}
+
+	@Benchmark
+	public long registryFanOut() throws Exception {
+		ByteBuffer message = Chatserver.prefixLines(prefix, ClientConnection.CHARSET.encode(text));
+		for (Session recipient : registry.snapshot().getSessions()) {
+			if (recipient != sender) {
+				recipient.getConnection().send(message);
+			}
+		}
+		return drain();
+	}
+
+	private long drain() throws Exception {
+		for (OutboundQueue queue : queues) {
+			queue.drainTo(batch);
+			for (ByteBuffer buffer : batch) {
+				sink.write(buffer);
+			}
+			batch.clear();
+		}
+		return sink.bytes;
+	}
+
+	// Queues the messages sent to it like the connections of the server
+	private static class QueueConnection implements ClientConnection {
+
+		private final OutboundQueue queue;
+
+		QueueConnection(OutboundQueue queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void sendLine(String line) {
+			send(CHARSET.encode(line + "\n"));
+		}
+
+		@Override
+		public void send(ByteBuffer message) {
+			queue.offer(message.duplicate());
+		}
+
+		@Override
+		public void startCompression(String line, int level) {
+			sendLine(line);
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String getHostAddress() {
+			return "127.0.0.1";
+		}
+	}
+
+	// Swallows everything written to it, like a socket with an empty send buffer
+	private static class NullChannel implements WritableByteChannel {
+
+		long bytes;
+
+		final OutputStream stream = new OutputStream() {
+			@Override
+			public void write(int b) {
+				bytes++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				bytes += len;
+			}
+		};
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			src.position(src.limit());
+			bytes += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.Frames;
+
+/**
+ * Measures how fast the server turns the bytes read from a client into
+ * dispatched commands.
+ * <p/>
+ * Every invocation feeds a mix of {@value #COMMANDS} commands ({@code !send},
+ * {@code !lookup}, {@code !register} and {@code !history}) to an
+ * {@link InboundDecoder} in chunks of the size of a socket read, either as
+ * text lines or as binary frames. The handler maps the commands to opcodes and
+ * dispatches them like the connection handler of the {@link Chatserver}, but
+ * does not execute them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+
+	private static final int COMMANDS = 1000;
+	private static final int READ_SIZE = 4096;
+
+	@Param({ "text", "binary" })
+	public String protocol;
+
+	private byte[] input;
+	private InboundDecoder decoder;
+	private DispatchingHandler handler;
+
+	@Setup
+	public void setUp() {
+		String[] arguments = { "anyone up for lunch at the usual place? \u00e4\u00f6\u00fc",
+				"bill.de", "127.0.0.1:13370", "20" };
+		String[] commands = { "!send ", "!lookup ", "!register ", "!history " };
+		byte[] opcodes = { Frames.SEND, Frames.LOOKUP, Frames.REGISTER, Frames.HISTORY };
+
+		boolean binary = protocol.equals("binary");
+		ByteBuffer bytes = ByteBuffer.allocate(COMMANDS * (Frames.HEADER_LENGTH + 128));
+		for (int i = 0; i < COMMANDS; i++) {
+			int command = i % commands.length;
+			if (binary) {
+				bytes.put(Frames.encode(opcodes[command], arguments[command]));
+			} else {
+				bytes.put(ClientConnection.CHARSET.encode(commands[command] + arguments[command] + "\n"));
+			}
+		}
+		input = new byte[bytes.position()];
+		bytes.flip();
+		bytes.get(input);
+
+		handler = new DispatchingHandler();
+		decoder = new InboundDecoder(new NullConnection(), handler);
+		if (binary) {
+			decoder.buffer().put(ClientConnection.CHARSET.encode(Frames.NEGOTIATE + "\n"));
+			decoder.decode();
+		}
+	}
+
+	@Benchmark
+	public long decodeAndDispatch() {
+		int position = 0;
+		while (position < input.length) {
+			ByteBuffer buffer = decoder.buffer();
+			int length = Math.min(Math.min(READ_SIZE, buffer.remaining()), input.length - position);
+			buffer.put(input, position, length);
+			position += length;
+			if (!decoder.decode()) {
+				throw new IllegalStateException("Connection closed by the decoder");
+			}
+		}
+		return handler.dispatched;
+	}
+
+	// Maps lines and frames to opcodes like the connection handler of the server
+	private static class DispatchingHandler implements LineHandler {
+
+		long dispatched;
+
+		@Override
+		public boolean onLine(String input) {
+			if (input.startsWith("!login "))
+				return dispatch(Frames.LOGIN, input.substring(7));
+			else if (input.equals("!logout"))
+				return dispatch(Frames.LOGOUT, "");
+			else if (input.startsWith("!send "))
+				return dispatch(Frames.SEND, input.substring(6));
+			else if (input.startsWith("!register "))
+				return dispatch(Frames.REGISTER, input.substring(10));
+			else if (input.startsWith("!lookup "))
+				return dispatch(Frames.LOOKUP, input.substring(8));
+			else if (input.startsWith("!history "))
+				return dispatch(Frames.HISTORY, input.substring(9));
+			else if (input.startsWith("!relay "))
+				return dispatch(Frames.RELAY, input.substring(7));
+			else
+				return dispatch((byte) 0, input);
+		}
+
+		@Override
+		public boolean onFrame(byte opcode, ByteBuffer payload) {
+			if (opcode == Frames.SEND) {
+				// relayed straight from the read buffer
+				dispatched += payload.remaining();
+				return true;
+			}
+			return dispatch(opcode, ClientConnection.CHARSET.decode(payload).toString());
+		}
+
+		private boolean dispatch(byte opcode, String argument) {
+			switch (opcode) {
+			case Frames.LOGOUT:
+				return false;
+			case Frames.SEND:
+				// the server encodes text messages before the broadcast
+				dispatched += ClientConnection.CHARSET.encode(argument).remaining();
+				break;
+			case Frames.REGISTER:
+			case Frames.LOOKUP:
+			case Frames.RELAY:
+				dispatched += argument.length();
+				break;
+			case Frames.HISTORY:
+				dispatched += Integer.parseInt(argument);
+				break;
+			default:
+				break;
+			}
+			return true;
+		}
+
+		@Override
+		public void onClose() {
+		}
+	}
+
+	// Discards all replies, including the acknowledgement of the negotiation
+	private static class NullConnection implements ClientConnection {
+
+		@Override
+		public void sendLine(String line) {
+		}
+
+		@Override
+		public void send(ByteBuffer message) {
+		}
+
+		@Override
+		public void startCompression(String line, int level) {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String getHostAddress() {
+			return "127.0.0.1";
+		}
+	}
+}
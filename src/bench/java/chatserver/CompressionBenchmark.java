@@ -0,0 +1,137 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Trades the bandwidth saved by compressed connections against the CPU time
+ * spent on them.
+ * <p/>
+ * Every invocation writes one batch of chat messages to a single connection,
+ * like one flush of its writer: either plain ({@code level=none}) or through an
+ * {@link OutboundCompressor} of the given level, which keeps its dictionary
+ * across all batches. The throughput shows the CPU cost per batch; the
+ * auxiliary counters {@code uncompressed} and {@code written} show the bytes
+ * per millisecond before and after compression, so their quotient is the
+ * compression ratio.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	private static final int DISTINCT_MESSAGES = 1024;
+
+	private static final String[] NAMES = { "alice.vienna.at", "bill.de", "carol.graz.at", "dave.berlin.de",
+			"eve.linz.at", "frank.munich.de" };
+
+	private static final String[] WORDS = { "anyone", "up", "for", "lunch", "at", "the", "usual", "place", "?",
+			"meeting", "moved", "to", "room", "3", "build", "is", "green", "again", "thanks", "see", "you",
+			"tomorrow", "ok", "deadline", "friday", "\u00e4\u00f6\u00fc", "the", "server", "restarted", "at",
+			"10:00", "please", "review", "my", "patch" };
+
+	/**
+	 * The length of the messages in bytes: a short reply, a typical chat line
+	 * and a pasted paragraph.
+	 */
+	@Param({ "32", "128", "1024" })
+	public int messageSize;
+
+	/**
+	 * The number of messages written per flush; a single message per flush is
+	 * the worst case of a sync-flushed stream.
+	 */
+	@Param({ "1", "16" })
+	public int batch;
+
+	@Param({ "none", "1", "6" })
+	public String level;
+
+	private ByteBuffer[] messages;
+	private int next;
+	private OutboundCompressor compressor;
+
+	// Bytes per millisecond before and after compression
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Bytes {
+
+		public long uncompressed;
+		public long written;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			uncompressed = 0;
+			written = 0;
+		}
+	}
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(42);
+		messages = new ByteBuffer[DISTINCT_MESSAGES];
+		for (int i = 0; i < messages.length; i++) {
+			StringBuilder line = new StringBuilder(NAMES[random.nextInt(NAMES.length)]).append(": ");
+			while (ClientConnection.CHARSET.encode(line.toString()).remaining() < messageSize - 1) {
+				line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			ByteBuffer message = ClientConnection.CHARSET.encode(line.toString());
+			message.limit(Math.min(message.limit(), messageSize - 1));
+			ByteBuffer terminated = ByteBuffer.allocate(message.remaining() + 1);
+			terminated.put(message).put((byte) '\n').flip();
+			messages[i] = terminated.asReadOnlyBuffer();
+		}
+
+		if (!level.equals("none")) {
+			Metrics metrics = new Metrics(new OutboundPolicy(1024, 64, OutboundPolicy.Overflow.DROP_OLDEST));
+			compressor = new OutboundCompressor(Integer.parseInt(level), metrics);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (compressor != null) {
+			compressor.end();
+		}
+	}
+
+	@Benchmark
+	public ByteBuffer writeBatch(Bytes bytes) {
+		ByteBuffer written = null;
+		for (int i = 0; i < batch; i++) {
+			ByteBuffer message = messages[next];
+			next = (next + 1) % messages.length;
+			bytes.uncompressed += message.remaining();
+			if (compressor == null) {
+				bytes.written += message.remaining();
+				written = message;
+			} else {
+				compressor.add(message);
+			}
+		}
+		if (compressor != null) {
+			written = compressor.flush();
+			bytes.written += written.remaining();
+		}
+		return written;
+	}
+}
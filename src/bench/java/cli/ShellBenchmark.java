@@ -0,0 +1,90 @@
+package cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the command line of the components: parsing and invoking a
+ * {@link Command} with {@link Shell#invoke(String)} and formatting its output
+ * with {@link Shell#writeLine(String)}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShellBenchmark {
+
+	private Shell shell;
+
+	@Setup
+	public void setUp() {
+		shell = new Shell("client", new ByteArrayInputStream(new byte[0]), new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		shell.register(new Commands());
+	}
+
+	@Benchmark
+	public Object invokeWithoutArguments() throws Throwable {
+		return shell.invoke("!lastMsg");
+	}
+
+	@Benchmark
+	public Object invokeWithMessage() throws Throwable {
+		return shell.invoke("!msg bill.de anyone up for lunch at the usual place?");
+	}
+
+	@Benchmark
+	public Object invokeWithConversion() throws Throwable {
+		return shell.invoke("!history 20");
+	}
+
+	@Benchmark
+	public void writeLine() throws Exception {
+		shell.writeLine("alice.vienna.at: anyone up for lunch at the usual place?");
+	}
+
+	@Benchmark
+	public void writeMultipleLines() throws Exception {
+		shell.writeLine("Online users:\n* alice.vienna.at\n* bill.de\n* chatserver\n");
+	}
+
+	// Commands with the signatures of the client
+	public static class Commands {
+
+		@Command
+		public String lastMsg() {
+			return "No message received!";
+		}
+
+		@Command
+		public String msg(String username, String message) {
+			return username;
+		}
+
+		@Command
+		public String history(int count) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package util;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the lookups of {@link Config} on the configuration of the
+ * chatserver: present keys, optional keys falling back to their default and
+ * listing all keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark {
+
+	private Config config;
+
+	@Setup
+	public void setUp() {
+		config = new Config("chatserver");
+	}
+
+	@Benchmark
+	public String getString() {
+		return config.getString("tcp.port");
+	}
+
+	@Benchmark
+	public String getStringDefault() {
+		return config.getString("stats.file", "stats.txt");
+	}
+
+	@Benchmark
+	public int getInt() {
+		return config.getInt("tcp.port");
+	}
+
+	@Benchmark
+	public Set<String> listKeys() {
+		return config.listKeys();
+	}
+}
@@ -0,0 +1,64 @@
+package util;
+
+import java.io.File;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading the keys of the project with {@link Keys}: a public key, a
+ * password protected private key and the HMAC secret. The key files are
+ * resolved against {@code keysDir}, the {@code bench} target runs in the
+ * project directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeysBenchmark {
+
+	@Param({ "keys" })
+	public String keysDir;
+
+	private File publicKey;
+	private File privateKey;
+	private File secretKey;
+
+	@Setup
+	public void setUp() {
+		SecurityUtils.registerBouncyCastle();
+		publicKey = new File(keysDir, "chatserver/alice.vienna.at.pub.pem");
+		privateKey = new File(keysDir, "chatserver/chatserver.pem");
+		secretKey = new File(keysDir, "hmac.key");
+	}
+
+	@Benchmark
+	public PublicKey readPublicPEM() throws Exception {
+		return Keys.readPublicPEM(publicKey);
+	}
+
+	@Benchmark
+	public PrivateKey readPrivatePEM() throws Exception {
+		return Keys.readPrivatePEM(privateKey);
+	}
+
+	@Benchmark
+	public Key readSecretKey() throws Exception {
+		return Keys.readSecretKey(secretKey);
+	}
+}
@@ -0,0 +1,296 @@
+package chatserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Durable registry of the private addresses registered with {@code !register}.
+ * <p/>
+ * Lookups are served from a concurrent in-memory index. Every registration is
+ * appended to a log file; once the log holds more records than the compaction
+ * threshold, it is rotated and the whole index is written to a compacted
+ * snapshot in the background. At startup the snapshot and the logs are memory
+ * mapped and replayed, so restarts stay fast even with millions of entries.
+ * <p/>
+ * Files in the store directory:
+ * <ul>
+ * <li>{@code addresses.snapshot}: magic, entry count, entries</li>
+ * <li>{@code addresses.log.old}: the rotated log while a compaction runs</li>
+ * <li>{@code addresses.log}: entries registered since the last rotation</li>
+ * </ul>
+ * An entry is a length prefixed UTF-8 user name followed by a length prefixed
+ * UTF-8 address. Entries are replayed in the order above, later ones win.
+ */
+class AddressStore {
+
+	private static final int SNAPSHOT_MAGIC = 0x41445231; // "ADR1"
+	private static final int MAX_FIELD_LENGTH = 0xffff;
+
+	private final Path snapshotFile;
+	private final Path logFile;
+	private final Path oldLogFile;
+	private final int compactThreshold;
+	private final Executor executor;
+
+	private final ConcurrentHashMap<String, String> index;
+	private final Object logLock = new Object();
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private final ByteBuffer record = ByteBuffer.allocate(4 + 2 * MAX_FIELD_LENGTH);
+	private FileChannel log;
+	private long logRecords;
+
+	private AddressStore(Path dir, int compactThreshold, Executor executor,
+			int expectedSize) {
+		this.snapshotFile = dir.resolve("addresses.snapshot");
+		this.logFile = dir.resolve("addresses.log");
+		this.oldLogFile = dir.resolve("addresses.log.old");
+		this.compactThreshold = compactThreshold;
+		this.executor = executor;
+		this.index = new ConcurrentHashMap<>(Math.max(16, expectedSize * 4 / 3 + 1));
+	}
+
+	/**
+	 * Opens the store in the given directory and loads all entries.
+	 *
+	 * @param dir
+	 *            the store directory, created if necessary
+	 * @param compactThreshold
+	 *            number of log records after which the log is compacted
+	 * @param executor
+	 *            runs the background compactions
+	 * @throws IOException
+	 *             if the files cannot be read or created
+	 */
+	static AddressStore open(Path dir, int compactThreshold, Executor executor)
+			throws IOException {
+		Files.createDirectories(dir);
+
+		AddressStore store;
+		Path snapshot = dir.resolve("addresses.snapshot");
+		if (Files.exists(snapshot)) {
+			MappedByteBuffer buffer = map(snapshot);
+			if (buffer.remaining() < 8 || buffer.getInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("Not an address snapshot: " + snapshot);
+			}
+			store = new AddressStore(dir, compactThreshold, executor, buffer.getInt());
+			replay(buffer, store.index);
+		} else {
+			store = new AddressStore(dir, compactThreshold, executor, 0);
+		}
+
+		boolean interrupted = Files.exists(store.oldLogFile);
+		if (interrupted) {
+			replay(map(store.oldLogFile), store.index);
+		}
+
+		store.log = FileChannel.open(store.logFile, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer buffer = store.log.map(FileChannel.MapMode.READ_ONLY, 0,
+				store.log.size());
+		store.logRecords = replay(buffer, store.index);
+		// cut off a record torn by a crash
+		store.log.truncate(buffer.position());
+		store.log.position(buffer.position());
+
+		if (interrupted) {
+			// finish the compaction that was interrupted by the last shutdown
+			store.compact();
+		}
+		return store;
+	}
+
+	private static MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	/*
+	 * Reads entries until the end of the buffer or the first incomplete entry
+	 * and leaves the position behind the last complete one.
+	 */
+	private static long replay(ByteBuffer buffer, Map<String, String> index) {
+		byte[] scratch = new byte[MAX_FIELD_LENGTH];
+		long entries = 0;
+		while (true) {
+			int start = buffer.position();
+			String name = readField(buffer, scratch);
+			String address = name == null ? null : readField(buffer, scratch);
+			if (address == null) {
+				buffer.position(start);
+				return entries;
+			}
+			index.put(name, address);
+			entries++;
+		}
+	}
+
+	private static String readField(ByteBuffer buffer, byte[] scratch) {
+		if (buffer.remaining() < 2) {
+			return null;
+		}
+		int length = buffer.getShort() & 0xffff;
+		if (buffer.remaining() < length) {
+			return null;
+		}
+		buffer.get(scratch, 0, length);
+		return new String(scratch, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the address registered for the given user or {@code null}
+	 */
+	String get(String name) {
+		return index.get(name);
+	}
+
+	/**
+	 * @return a read-only, weakly consistent view of all registered addresses
+	 *         by user name
+	 */
+	Map<String, String> entries() {
+		return Collections.unmodifiableMap(index);
+	}
+
+	/**
+	 * @return the number of registered addresses
+	 */
+	int size() {
+		return index.size();
+	}
+
+	/**
+	 * Registers the given address for the given user and appends it to the
+	 * log. The address is available for lookups even if it cannot be written.
+	 *
+	 * @throws IOException
+	 *             if the entry cannot be appended to the log
+	 */
+	void put(String name, String address) throws IOException {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		byte[] addressBytes = address.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length > MAX_FIELD_LENGTH || addressBytes.length > MAX_FIELD_LENGTH) {
+			throw new IOException("Name or address too long");
+		}
+		index.put(name, address);
+
+		boolean compact;
+		synchronized (logLock) {
+			record.clear();
+			record.putShort((short) nameBytes.length).put(nameBytes);
+			record.putShort((short) addressBytes.length).put(addressBytes);
+			record.flip();
+			while (record.hasRemaining()) {
+				log.write(record);
+			}
+			compact = ++logRecords >= compactThreshold;
+		}
+
+		if (compact && compacting.compareAndSet(false, true)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compactNow();
+					} catch (IOException e) {
+						// the log keeps growing, next registration retries
+					} finally {
+						compacting.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes a compacted snapshot and discards the log, unless a compaction is
+	 * already running.
+	 *
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	void compact() throws IOException {
+		if (!compacting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			compactNow();
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	private void compactNow() throws IOException {
+		// rotate the log, registrations from now on go to a fresh one
+		synchronized (logLock) {
+			if (!Files.exists(oldLogFile)) {
+				log.force(false);
+				log.close();
+				Files.move(logFile, oldLogFile, StandardCopyOption.ATOMIC_MOVE);
+				log = FileChannel.open(logFile, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE);
+				logRecords = 0;
+			}
+		}
+
+		// the index contains everything of the rotated log
+		Path tmp = snapshotFile.resolveSibling("addresses.snapshot.tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			OutputStream stream = Channels.newOutputStream(channel);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(index.size());
+			for (Map.Entry<String, String> entry : index.entrySet()) {
+				writeField(out, entry.getKey());
+				writeField(out, entry.getValue());
+			}
+			out.flush();
+			channel.force(true);
+		}
+		Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		Files.delete(oldLogFile);
+	}
+
+	private static void writeField(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Compacts the store and closes the log, so that the next start only has to
+	 * read the snapshot.
+	 */
+	void close() {
+		try {
+			compact();
+		} catch (IOException e) {
+			// the log is replayed at the next start
+		}
+		synchronized (logLock) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package chatserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link ClientConnection} of the blocking front end.
+ * <p/>
+ * Lines sent to the connection are put into its {@link OutboundQueue}; the
+ * connection itself is the writer task that drains the queue, writes each
+ * batch and flushes once per batch. Once compression has been negotiated, each
+ * batch is written as one sync-flushed block of the deflate stream.
+ */
+class BlockingConnection implements ClientConnection, Runnable {
+
+	private final Socket socket;
+	private final OutboundQueue queue;
+	private final Metrics metrics;
+	private volatile boolean closing;
+	// set before the start marker is queued, read by the writer after taking it
+	private int compressionLevel;
+
+	BlockingConnection(Socket socket, OutboundPolicy policy, Metrics metrics) {
+		this.socket = socket;
+		this.queue = new OutboundQueue(policy);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void sendLine(String line) {
+		send(CHARSET.encode(line + "\n"));
+	}
+
+	@Override
+	public void send(ByteBuffer message) {
+		if (closing) {
+			return;
+		}
+		if (!queue.offer(message.duplicate())) {
+			closeNow();
+		}
+	}
+
+	@Override
+	public void startCompression(String line, int level) {
+		sendLine(line);
+		compressionLevel = level;
+		if (!closing && !queue.offer(OutboundCompressor.START)) {
+			closeNow();
+		}
+	}
+
+	@Override
+	public void close() {
+		closing = true;
+		queue.close();
+	}
+
+	/**
+	 * Closes the socket without writing the queued lines.
+	 */
+	void closeNow() {
+		closing = true;
+		queue.close();
+		queue.clear();
+		closeSocket();
+	}
+
+	@Override
+	public String getHostAddress() {
+		return socket.getInetAddress().getHostAddress();
+	}
+
+	// writer loop, ends once the queue is closed and drained
+	@Override
+	public void run() {
+		List<ByteBuffer> batch = new ArrayList<>();
+		OutboundCompressor compressor = null;
+		try {
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			// shared broadcast buffers are read-only, so they are written through a channel
+			WritableByteChannel channel = Channels.newChannel(out);
+			while (queue.awaitDrainTo(batch) > 0) {
+				long written = 0;
+				for (ByteBuffer buffer : batch) {
+					if (buffer == OutboundCompressor.START) {
+						compressor = new OutboundCompressor(compressionLevel, metrics);
+					} else if (compressor != null) {
+						compressor.add(buffer);
+					} else {
+						written += write(channel, buffer);
+					}
+				}
+				if (compressor != null && compressor.hasPending()) {
+					written += write(channel, compressor.flush());
+				}
+				out.flush();
+				metrics.bytesWritten(written);
+				batch.clear();
+			}
+		} catch (IOException | InterruptedException e) {
+			// connection lost, nothing left to write to
+		}
+		if (compressor != null) {
+			compressor.end();
+		}
+		closeSocket();
+	}
+
+	private static long write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		long written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer);
+		}
+		return written;
+	}
+
+	private void closeSocket() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+}
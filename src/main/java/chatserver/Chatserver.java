@@ -1,29 +1,41 @@
 package chatserver;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
-import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.net.SocketAddress;
 import java.net.UnknownHostException;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.HashSet;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 import cli.Command;
 import cli.Shell;
 import util.Config;
+import util.Frames;
+import util.MeteredExecutor;
+import util.RateMeter;
 
 // Tom Tucek, 1325775
 
@@ -31,19 +43,32 @@ public class Chatserver implements IChatserverCli, Runnable {
 
 	private String componentName;
 	private Config config;
-	private Config userConfig;
+	private CredentialStore credentials;
 	private InputStream userRequestStream;
 	private PrintStream userResponseStream;
 	
 	private ServerSocket tcpSocket;
-	private DatagramSocket udpSocket;
-	private ExecutorService threadPool;
+	private ServerSocketChannel tcpChannel;
+	private TCPReactor reactor;
+	private DatagramChannel udpChannel;
+	private UDPListenerThread udpListener;
+	private RateMeter udpPackets = new RateMeter();
+	private AtomicLong udpDropped = new AtomicLong();
+	private MeteredExecutor threadPool;
+	private OutboundPolicy outboundPolicy;
+	private Metrics metrics;
+	private StatsDumpThread statsDump;
 	
 	private Shell shell;
 	
-	private Map<String, Socket> onlineUsers;
-	private Map<String, PrintWriter> onlineOutputWriters;
-	private Map<String, String> registeredUsers;
+	private PresenceRegistry onlineUsers;
+	private OnlineListPages listPages;
+	private AddressStore registeredUsers;
+	private MessageJournal history;
+	private MailboxStore mailboxes;
+	private Cluster cluster;
+	private RoomIndex rooms;
+	private int compressionLevel;
 	//private Set<Socket> activeSockets;
 
 	/**
@@ -63,27 +88,108 @@ public class Chatserver implements IChatserverCli, Runnable {
 		this.userRequestStream = userRequestStream;
 		this.userResponseStream = userResponseStream;
 
-		threadPool = Executors.newCachedThreadPool();
+		threadPool = MeteredExecutor.create(config);
+		outboundPolicy = OutboundPolicy.create(config);
+		metrics = new Metrics(outboundPolicy);
+		compressionLevel = Math.min(config.getInt("compression.level", 6), Deflater.BEST_COMPRESSION);
 				
 		String tcpPort = config.getString("tcp.port");
 		String udpPort = config.getString("udp.port");
 		
-		userConfig = new Config("user");
-		onlineUsers = new TreeMap<String, Socket>();
-		onlineOutputWriters = new TreeMap<String, PrintWriter>();
-		registeredUsers = new TreeMap<String, String>();
+		try {
+			credentials = CredentialStore.open(config, new CredentialStore.Listener() {
+				@Override
+				public void reloaded(CredentialIndex index) {
+					writeToShell("Reloaded " + index.size() + " user credentials.");
+				}
+				
+				@Override
+				public void reloadFailed(Path file, IOException e) {
+					writeToShell("ERROR: Could not reload user credentials from " + file + ": " + e.getMessage());
+				}
+			});
+		} catch (IOException e) {
+			userResponseStream.println("Error reading user credentials: " + e.getMessage());
+			e.printStackTrace();
+		}
+		onlineUsers = new PresenceRegistry();
+		rooms = new RoomIndex();
+		listPages = new OnlineListPages(onlineUsers, config.getInt("udp.page.size", 1400));
+		try {
+			registeredUsers = AddressStore.open(Paths.get(config.getString("addresses.dir", "data/addresses")),
+					config.getInt("addresses.compact.threshold", 100000), threadPool);
+		} catch (IOException e) {
+			userResponseStream.println("Error opening address store: " + e.getMessage());
+			e.printStackTrace();
+		}
+		try {
+			history = MessageJournal.open(config);
+		} catch (IOException e) {
+			userResponseStream.println("Error opening message history: " + e.getMessage());
+			e.printStackTrace();
+		}
+		try {
+			mailboxes = MailboxStore.open(config);
+		} catch (IOException e) {
+			userResponseStream.println("Error opening mailboxes: " + e.getMessage());
+			e.printStackTrace();
+		}
+		try {
+			cluster = Cluster.open(config, onlineUsers, registeredUsers, new Cluster.Delivery() {
+				@Override
+				public void broadcast(ByteBuffer message) {
+					// sent by a user of another node, so every user of this node receives it
+					for(Session recipient : onlineUsers.snapshot().getSessions())
+					{
+						if(recipient.getNode() == null)
+							recipient.getConnection().send(message);
+					}
+					history.append(message);
+				}
+				
+				@Override
+				public void deliver(String name, ByteBuffer message) {
+					Session recipient = onlineUsers.getActive(name);
+					if(recipient != null && recipient.getNode() == null)
+						recipient.getConnection().send(message);
+					else
+					{
+						// logged out in the meantime
+						try {
+							mailboxes.put(name, message);
+						} catch (IOException e) {
+							writeToShell("ERROR: Could not store message for " + name + ": " + e.getMessage());
+						}
+					}
+				}
+				
+				@Override
+				public void sendTo(String room, ByteBuffer message) {
+					for(Session member : rooms.members(room))
+						member.getConnection().send(message);
+				}
+			});
+		} catch (NumberFormatException | IOException e) {
+			userResponseStream.println("Error creating cluster socket: " + e.getMessage());
+			e.printStackTrace();
+		}
 		//activeSockets = new HashSet<Socket>();
 			
 		try {
-			tcpSocket = new ServerSocket(Integer.valueOf(tcpPort));
+			// "reactor" serves all connections from a few selector threads, "blocking" uses one thread per connection
+			if(config.getString("tcp.mode", "blocking").equals("reactor"))
+				tcpChannel = TCPReactor.open(Integer.valueOf(tcpPort));
+			else
+				tcpSocket = new ServerSocket(Integer.valueOf(tcpPort));
 		} catch (NumberFormatException | IOException e1) {	
 			userResponseStream.println("Error creating TCP socket: " + e1.getMessage());
 			e1.printStackTrace();
 		}
 				
 		try {
-			udpSocket = new DatagramSocket(Integer.valueOf(udpPort));
-		} catch (NumberFormatException | SocketException e) {
+			udpChannel = DatagramChannel.open();
+			udpChannel.bind(new InetSocketAddress(Integer.valueOf(udpPort)));
+		} catch (NumberFormatException | IOException e) {
 			userResponseStream.println("Error creating UDP socket: " + e.getMessage());
 			e.printStackTrace();
 		}
@@ -122,7 +228,7 @@ public class Chatserver implements IChatserverCli, Runnable {
 		}
 	}
 
-	// Thread for a single TCP connection
+	// Thread for a single TCP connection (blocking front end)
 	private class TCPSubListenerThread implements Runnable
 	{
 		private Socket socket;
@@ -146,13 +252,12 @@ public class Chatserver implements IChatserverCli, Runnable {
 		@Override
 		public void run() {
 			
-			PrintWriter out;
-			BufferedReader in;
+			BlockingConnection connection = new BlockingConnection(socket, outboundPolicy, metrics);
+			ReadableByteChannel in;
 			
 		    try {
 		    	
-		    	out = new PrintWriter(socket.getOutputStream(), true);
-				in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				in = Channels.newChannel(socket.getInputStream());
 				
 			} catch (IOException e) {
 
@@ -163,256 +268,664 @@ public class Chatserver implements IChatserverCli, Runnable {
 				return;
 			}
 		    
-		    String input;
+		    // writer draining the outbound queue of this connection
+		    threadPool.execute(connection);
+			LineHandler handler = new TCPConnectionHandler(connection);
+			InboundDecoder decoder = new InboundDecoder(connection, handler);
 		    
+		    // Listener Loop, connection to client remains
+		    boolean closedByServer = false;
 		    try {
-				 input = in.readLine();
+		    	int read;
+		    	while((read = in.read(decoder.buffer())) >= 0)
+		    	{
+		    		metrics.bytesRead(read);
+		    		//writeToShell("Got TCP message from client[" + socket.getInetAddress().getHostAddress() + "]");
+		    		if(!decoder.decode())
+		    		{
+		    			closedByServer = true;
+		    			break;
+		    		}
+		    	}
 			} catch (IOException e) {
-
-				writeToShell("ERROR: Could not read message from client [" 
-							+ socket.getInetAddress().getHostAddress() + "]. Closing connection.");
 				
-				this.closeSocket();
-				return;
 			}
-
-		    //writeToShell("Got TCP message from client[" + socket.getInetAddress().getHostAddress() + "]: " + input);
 		    
-		    if(input.substring(0, 6).equals("!login"))
-		    {
-		    	String name = input.substring(7, input.lastIndexOf(" "));
-		    	String pw = input.substring(input.lastIndexOf(" ") + 1);
-		    	
-		    	synchronized (onlineUsers) {
-			    	if(onlineUsers.containsKey(name)) {
-		    			out.println("Login failed. User \"" + name + "\" already logged in.");
-			    		
-			    		this.closeSocket();
-			    		return;
-			    	} 
-				}
-		    		
-	    		if (userConfig.listKeys().contains(name + ".password") 
-		    			&& userConfig.getString(name + ".password").equals(pw)) {
-		    		
-		    		// LOGIN SUCCESSFUL
-		    		
-		    		//userResponseStream.println("login info: " + name + ", " + pw +" LOGIN SUCCESS");
-		    		out.println("Successfully logged in.");
-		    		
-		    		synchronized (onlineUsers) {
-			    		onlineUsers.put(name, socket);
-			    		onlineOutputWriters.put(name, out);
-			    		//activeSockets.add(socket);
-					}
-		    		
-		    		// Listener Loop, connection to client remains
-		    		try {
-						while(true)
-						{
-							input = in.readLine();
-							if(input != null)
-							{
-								if(input.equals("!logout"))							// !logout
-								{
-									//out.println("Successfully logged out.");
-									break;
-								}
-								else if(input.substring(0, 5).equals("!send"))		// !send <message>
-								{
-									synchronized (onlineUsers) {
-										for(Entry<String, PrintWriter> entry : onlineOutputWriters.entrySet())
-										{
-											// don't return message to sender
-											if(!entry.getKey().equals(name))
-											{
-												entry.getValue().println(name + ": " + input.substring(6));
-											}
-										}
-									}
-								}
-								else if(input.substring(0, 9).equals("!register"))	// !register <IP:port>
-								{									
-									String ip = input.substring(10, input.lastIndexOf(":"));
-									boolean fine = true;
-									try
-									{
-										//writeToShell("Got address: " + InetAddress.getByName(ip).getHostAddress());
-										InetAddress.getByName(ip);
-									}
-									catch(UnknownHostException uhe)
-									{
-										fine = false;
-									}
-									
-									if(fine == false || input.lastIndexOf(":") < 0 || input.substring(input.lastIndexOf(":")).length() < 1)
-									{
-										out.println("!sm Error: Could not register the given address.");
-									}
-									else
-									{
-										registeredUsers.put(name, input.substring(10));
-										out.println("!sm Successfully registered address for " + name);
-									}
-								}
-								else if(input.substring(0, 7).equals("!lookup"))	// !lookup <username>
-								{
-									String nameToFind = input.substring(8);
-									if(registeredUsers.containsKey(nameToFind))
-										out.println("!lookup-result " + nameToFind + " " + registeredUsers.get(nameToFind));
-									else
-										out.println("!sm [" + nameToFind + "] not found. Wrong username or user not reachable.");
-								}
-							}
-									
-						}
-					} catch (IOException e) {
-						
-					}
-
-		    		//writeToShell("Closing TCP connection to client[" + socket.getInetAddress().getHostAddress() + "].");
-		    				    		
-		    		// close connection
-		    		synchronized (onlineUsers) {
-			    		onlineUsers.remove(name);
-			    		onlineOutputWriters.remove(name);
-					}
-		    		this.closeSocket();
-
-		    		    				    		
-		    	} else {
-		    		//userResponseStream.println("login info: " + name + ", " + pw +" LOGIN FAILED");
-		    		out.println("Wrong username or password.");
-		    		
-		    		this.closeSocket();
-		    		return;
-		    	}
-		    }
+		    //writeToShell("Closing TCP connection to client[" + socket.getInetAddress().getHostAddress() + "].");
+		    
+		    handler.onClose();
+		    
+		    // let the writer deliver pending replies before it closes the socket
+		    if(closedByServer)
+		    	connection.close();
 		    else
-		    {
-		    	out.println("Not logged in. Please log in before using commands other than !list.");
-	    		
-	    		this.closeSocket();
-	    		return;
-		    }
+		    	connection.closeNow();
 		}
 	}
 	
-	
-	// Thread waiting for new UDP connections
-	private class UDPMainListenerThread implements Runnable
+	// Protocol state of a single TCP connection, shared by the blocking and the reactor front end
+	private class TCPConnectionHandler implements LineHandler
 	{
-		DatagramSocket socket;
-		public UDPMainListenerThread(DatagramSocket socket)
+		private ClientConnection out;
+		private String name;
+		private Session session;
+		// "<name>: " in front of every relayed line
+		private byte[] prefix;
+		// the rooms this user has joined, left when the connection is closed
+		private Set<String> joinedRooms = new HashSet<String>();
+		private boolean compressing;
+		
+		public TCPConnectionHandler(ClientConnection out)
 		{
-			this.socket = socket;
+			this.out = out;
+			metrics.connectionOpened();
 		}
-
+		
 		@Override
-		public void run() {
-
-			try {
-				while(true)
+		public boolean onLine(String input) {
+			
+			if(input.equals(Frames.COMPRESS))					// !compress deflate, before !login
+				return negotiateCompression();
+			
+			// text commands are mapped to the opcodes of the binary protocol
+			if(input.startsWith("!login "))						// !login <username> <password>
+				return dispatch(Frames.LOGIN, input.substring(7));
+			else if(input.equals("!logout"))					// !logout
+				return dispatch(Frames.LOGOUT, "");
+			else if(input.startsWith("!send "))				// !send <message>
+				return dispatch(Frames.SEND, input.substring(6));
+			else if(input.startsWith("!register "))			// !register <IP:port>
+				return dispatch(Frames.REGISTER, input.substring(10));
+			else if(input.startsWith("!lookup "))				// !lookup <username>
+				return dispatch(Frames.LOOKUP, input.substring(8));
+			else if(input.startsWith("!history "))			// !history <n>
+				return dispatch(Frames.HISTORY, input.substring(9));
+			else if(input.startsWith("!relay "))				// !relay <username> <message>
+				return dispatch(Frames.RELAY, input.substring(7));
+			else if(input.startsWith("!join "))				// !join <room>
+				return dispatch(Frames.JOIN, input.substring(6));
+			else if(input.startsWith("!leave "))				// !leave <room>
+				return dispatch(Frames.LEAVE, input.substring(7));
+			else if(input.startsWith("!sendto "))				// !sendto <room> <message>
+				return dispatch(Frames.SENDTO, input.substring(8));
+			else
+				return dispatch((byte) 0, input);
+		}
+		
+		// acknowledged uncompressed, all further replies are compressed
+		private boolean negotiateCompression()
+		{
+			if(compressionLevel > 0 && name == null && !compressing)
+			{
+				compressing = true;
+				out.startCompression(Frames.COMPRESS, compressionLevel);
+			}
+			else if(!compressing)
+				out.sendLine(Frames.UNCOMPRESSED);
+			return true;
+		}
+		
+		@Override
+		public boolean onFrame(byte opcode, ByteBuffer payload) {
+			
+			// messages are relayed straight from the read buffer
+			if(opcode == Frames.SEND && name != null)
+			{
+				broadcast(payload);
+				return true;
+			}
+			return dispatch(opcode, ClientConnection.CHARSET.decode(payload).toString());
+		}
+		
+		private boolean dispatch(byte opcode, String argument)
+		{
+			if(name == null)
+			{
+				if(opcode == Frames.LOGIN)
 				{
-					byte[] buf = new byte[256];
-					DatagramPacket packet = new DatagramPacket(buf, buf.length);
-					socket.receive(packet);
-
-					//writeToShell("Establishing new udp connection to " + packet.getAddress().getHostAddress());
-					
-					threadPool.execute(new UDPSubListenerThread(socket, packet));
+					long start = System.nanoTime();
+					boolean loggedIn = login(argument);
+					metrics.login(loggedIn, start);
+					return loggedIn;
 				}
 				
+				out.sendLine("Not logged in. Please log in before using commands other than !list.");
+				return false;
 			}
-			catch(Exception e)
+			
+			switch(opcode)
 			{
-				//writeToShell("UDP Listener Thread shutting down.");
+			case Frames.LOGOUT:
+				//out.println("Successfully logged out.");
+				return false;
+			case Frames.SEND:
+				broadcast(ClientConnection.CHARSET.encode(argument));
+				break;
+			case Frames.REGISTER:
+				register(argument);
+				break;
+			case Frames.LOOKUP:
+				lookup(argument);
+				break;
+			case Frames.HISTORY:
+				history(argument);
+				break;
+			case Frames.RELAY:
+				relay(argument);
+				break;
+			case Frames.JOIN:
+				join(argument.trim());
+				break;
+			case Frames.LEAVE:
+				leave(argument.trim());
+				break;
+			case Frames.SENDTO:
+				sendTo(argument);
+				break;
+			default:
+				// unknown commands are ignored
+				break;
+			}
+			return true;
+		}
+		
+		// relays a message to all other online users, every line of it is prefixed with the sender
+		private void broadcast(ByteBuffer text)
+		{
+			long start = System.nanoTime();
+			
+			// encode once, every recipient gets a view of the same buffer
+			ByteBuffer message = prefixLines(prefix, text);
+			
+			int recipients = 0;
+			for(Session recipient : onlineUsers.snapshot().getSessions())
+			{
+				// don't return message to sender, users of other nodes get it from their node
+				if(recipient != session && recipient.getNode() == null)
+				{
+					recipient.getConnection().send(message);
+					recipients++;
+				}
+			}
+			metrics.broadcast(recipients, start);
+			history.append(message);
+			if(cluster != null)
+				cluster.broadcast(message);
+		}
+		
+		// adds the user to a room, the first member creates it
+		private void join(String room)
+		{
+			if(room.equals(RoomIndex.DEFAULT_ROOM))
+				out.sendLine("!sm Already in room " + room + ".");
+			else if(!RoomIndex.isValidName(room))
+				out.sendLine("!sm Error: Invalid room name. Please use !join <room> with a name without spaces.");
+			else if(rooms.join(room, session))
+			{
+				joinedRooms.add(room);
+				out.sendLine("!sm Joined room " + room + ".");
+			}
+			else
+				out.sendLine("!sm Already in room " + room + ".");
+		}
+		
+		private void leave(String room)
+		{
+			if(room.equals(RoomIndex.DEFAULT_ROOM))
+				out.sendLine("!sm Error: Room " + room + " cannot be left.");
+			else if(rooms.leave(room, session))
+			{
+				joinedRooms.remove(room);
+				out.sendLine("!sm Left room " + room + ".");
+			}
+			else
+				out.sendLine("!sm Not in room " + room + ".");
+		}
+		
+		// relays a message to the other members of a room only, the default room reaches every user
+		private void sendTo(String argument)
+		{
+			int separator = argument.indexOf(" ");
+			String room = separator < 0 ? argument : argument.substring(0, separator);
+			String text = separator < 0 ? "" : argument.substring(separator + 1);
+			
+			if(room.equals(RoomIndex.DEFAULT_ROOM))
+			{
+				broadcast(ClientConnection.CHARSET.encode(text));
+				return;
+			}
+			if(!joinedRooms.contains(room))
+			{
+				out.sendLine("!sm Error: Not in room " + room + ". Please !join " + room + " first.");
+				return;
+			}
+			
+			long start = System.nanoTime();
+			ByteBuffer message = prefixLines(("[" + room + "] " + name + ": ").getBytes(ClientConnection.CHARSET),
+					ClientConnection.CHARSET.encode(text));
+			int recipients = 0;
+			for(Session member : rooms.members(room))
+			{
+				if(member != session)
+				{
+					member.getConnection().send(message);
+					recipients++;
+				}
+			}
+			metrics.broadcast(recipients, start);
+			if(cluster != null)
+				cluster.sendTo(room, message);
+		}
+		
+		// forwards a private message through the server, or stores it until the recipient logs in
+		private void relay(String argument)
+		{
+			int separator = argument.indexOf(" ");
+			String recipientName = separator < 0 ? argument : argument.substring(0, separator);
+			String text = separator < 0 ? "" : argument.substring(separator + 1);
+			
+			if(!credentials.get().contains(recipientName))
+			{
+				out.sendLine("!sm Error: Unknown user " + recipientName + ".");
+				return;
+			}
+			
+			ByteBuffer message = prefixLines(("!sm [PM]" + name + ": ").getBytes(ClientConnection.CHARSET),
+					ClientConnection.CHARSET.encode(text));
+			Session recipient = onlineUsers.getActive(recipientName);
+			if(recipient != null)
+			{
+				recipient.getConnection().send(message);
+				out.sendLine("!sm Message to " + recipientName + " relayed by the server.");
+				return;
+			}
+			
+			try {
+				if(!mailboxes.put(recipientName, message))
+				{
+					out.sendLine("!sm Error: Mailbox of " + recipientName + " is full.");
+					return;
+				}
+			} catch (IOException e) {
+				writeToShell("ERROR: Could not store message for " + recipientName + ": " + e.getMessage());
+				out.sendLine("!sm Error: Could not store the message for " + recipientName + ".");
+				return;
+			}
+			out.sendLine("!sm " + recipientName + " is offline. The message will be delivered at the next login.");
+			
+			// the recipient may have logged in and emptied the mailbox in the meantime
+			recipient = onlineUsers.getActive(recipientName);
+			if(recipient != null)
+				deliverMailbox(recipient);
+		}
+		
+		// sends all messages stored for the given session in one batch
+		private void deliverMailbox(Session recipient)
+		{
+			try {
+				ByteBuffer messages = mailboxes.take(recipient.getName());
+				if(messages != null)
+					recipient.getConnection().send(messages);
+			} catch (IOException e) {
+				writeToShell("ERROR: Could not read mailbox of " + recipient.getName() + ": " + e.getMessage());
+			}
+		}
+		
+		private void register(String address)
+		{
+			int colon = address.lastIndexOf(":");
+			boolean fine = colon > 0;
+			try
+			{
+				//writeToShell("Got address: " + InetAddress.getByName(ip).getHostAddress());
+				if(fine)
+					InetAddress.getByName(address.substring(0, colon));
+			}
+			catch(UnknownHostException uhe)
+			{
+				fine = false;
+			}
+			
+			if(fine == false)
+			{
+				out.sendLine("!sm Error: Could not register the given address.");
+			}
+			else
+			{
+				try {
+					registeredUsers.put(name, address);
+				} catch (IOException e) {
+					writeToShell("ERROR: Could not persist address of " + name + ": " + e.getMessage());
+				}
+				if(cluster != null)
+					cluster.addressRegistered(name, address);
+				out.sendLine("!sm Successfully registered address for " + name);
+			}
+		}
+		
+		private void history(String count)
+		{
+			int n;
+			try {
+				n = Integer.parseInt(count.trim());
+			} catch (NumberFormatException e) {
+				n = -1;
+			}
+			
+			if(n < 1)
+				out.sendLine("!sm Error: Please use !history <number of messages>.");
+			else if(history.history(n, out) == 0)
+				out.sendLine("!sm No messages in history.");
+		}
+		
+		private void lookup(String nameToFind)
+		{
+			long start = System.nanoTime();
+			String address = registeredUsers.get(nameToFind);
+			if(address != null)
+				out.sendLine("!lookup-result " + nameToFind + " " + address);
+			else
+				out.sendLine("!sm [" + nameToFind + "] not found. Wrong username or user not reachable.");
+			metrics.lookup(start);
+		}
+		
+		private boolean login(String argument)
+		{
+			int separator = argument.lastIndexOf(" ");
+			if(separator < 0)
+			{
+				out.sendLine("Not logged in. Please log in before using commands other than !list.");
+				return false;
 			}
 			
+			String name = argument.substring(0, separator);
+			String pw = argument.substring(separator + 1);
+			
+			if(onlineUsers.isOnline(name)) {
+				out.sendLine("Login failed. User \"" + name + "\" already logged in.");
+				return false;
+			}
+			
+			if (!credentials.get().verify(name, pw)) {
+				//userResponseStream.println("login info: " + name + ", " + pw +" LOGIN FAILED");
+				out.sendLine("Wrong username or password.");
+				return false;
+			}
+			
+			Session session = new Session(name, out);
+			if(!onlineUsers.reserve(session)) {
+				out.sendLine("Login failed. User \"" + name + "\" already logged in.");
+				return false;
+			}
+			
+			// LOGIN SUCCESSFUL
+			
+			//userResponseStream.println("login info: " + name + ", " + pw +" LOGIN SUCCESS");
+			// confirm before the session becomes visible, so that no broadcast can overtake the confirmation
+			out.sendLine("Successfully logged in.");
+			onlineUsers.activate(session);
+			if(cluster != null)
+				cluster.online(session);
+			this.name = name;
+			this.session = session;
+			this.prefix = (name + ": ").getBytes(ClientConnection.CHARSET);
+			deliverMailbox(session);
+			return true;
 		}
 		
+		@Override
+		public void onClose() {
+			
+			metrics.connectionClosed();
+			if(session == null)
+				return;
+			
+			for(String room : joinedRooms)
+				rooms.leave(room, session);
+			onlineUsers.logout(session);
+			if(cluster != null)
+				cluster.offline(session);
+		}
 	}
 	
-	// Thread for a single UDP connection
-	private class UDPSubListenerThread implements Runnable
+	
+	/**
+	 * Encodes the given text as lines that all start with the given prefix.
+	 * Line breaks within the text start a new line, so that a message cannot
+	 * inject protocol lines into the output of other clients.
+	 *
+	 * @return a read-only buffer with the terminated lines
+	 */
+	static ByteBuffer prefixLines(byte[] linePrefix, ByteBuffer text)
 	{
-		DatagramSocket socket;
-		DatagramPacket packet;
-		public UDPSubListenerThread(DatagramSocket socket, DatagramPacket packet)
+		int breaks = 0;
+		for(int i = text.position(); i < text.limit(); i++)
+		{
+			byte b = text.get(i);
+			if(b == '\n' || b == '\r')
+				breaks++;
+		}
+		
+		ByteBuffer lines = ByteBuffer.allocate((breaks + 1) * linePrefix.length + text.remaining() + 1);
+		lines.put(linePrefix);
+		if(breaks == 0)
+		{
+			lines.put(text);
+		}
+		else
+		{
+			for(int i = text.position(); i < text.limit(); i++)
+			{
+				byte b = text.get(i);
+				if(b == '\r' && i + 1 < text.limit() && text.get(i + 1) == '\n')
+					continue;
+				if(b == '\n' || b == '\r')
+					lines.put((byte) '\n').put(linePrefix);
+				else
+					lines.put(b);
+			}
+		}
+		lines.put((byte) '\n');
+		lines.flip();
+		return lines.asReadOnlyBuffer();
+	}
+	
+	// Thread answering all UDP requests from the bound server channel
+	private class UDPListenerThread implements Runnable
+	{
+		// maximum number of datagrams handled per wakeup
+		private static final int BATCH_SIZE = 64;
+		
+		private final byte[] listCommand = "!list".getBytes(StandardCharsets.US_ASCII);
+		private final ByteBuffer unknownCommand = ByteBuffer.wrap("Unknown UDP command.".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+		
+		private DatagramChannel channel;
+		private Selector selector;
+		
+		public UDPListenerThread(DatagramChannel channel) throws IOException
+		{
+			this.channel = channel;
+			this.selector = Selector.open();
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+		}
+		
+		public void close()
 		{
-			this.packet = packet;
 			try {
-				this.socket = new DatagramSocket();
-			} catch (SocketException e) {
-				
-				writeToShell("ERROR: Could not create new UDP Socket to " + packet.getAddress().getHostAddress());
-				
-				this.socket = null;
+				channel.close();
+			} catch (IOException e) {
+				// already closed
 			}
+			selector.wakeup();
 		}
 
 		@Override
 		public void run() {
 			
-			if(this.socket == null)
-				return;
-			
-			String msg = new String(packet.getData(), 0, packet.getLength());
-			
-			//writeToShell("Received udp packet, message: " + msg);
+			// request buffer reused for every datagram
+			ByteBuffer in = ByteBuffer.allocateDirect(512);
 			
-			String response = "";
-			
-			if(msg.equals("!list"))
-			{
-				synchronized (onlineUsers) {
-
-					for(String user : onlineUsers.keySet())
+			try {
+				while(channel.isOpen())
+				{
+					selector.select();
+					selector.selectedKeys().clear();
+					
+					// drain everything that arrived, up to one batch
+					int received = 0;
+					SocketAddress sender;
+					in.clear();
+					while(received < BATCH_SIZE && (sender = channel.receive(in)) != null)
 					{
-						response += "* " + user + "\n";
+						in.flip();
+						received++;
+						
+						//writeToShell("Received udp packet from " + sender);
+						
+						long start = System.nanoTime();
+						if(channel.send(answer(in), sender) == 0)
+							udpDropped.incrementAndGet();
+						metrics.udpRequest(start);
+						in.clear();
 					}
-					
+					udpPackets.mark(received);
 				}
-				
-				if(response.equals(""))
-					response = "No users online.";
 			}
-			else
+			catch(IOException | ClosedSelectorException e)
 			{
-				response = "Unknown UDP command.";
+				//writeToShell("UDP Listener Thread shutting down.");
 			}
 			
-			byte[] buf = new byte[response.length() + 1];
-			buf = response.getBytes();
-			
-			DatagramPacket outPacket = new DatagramPacket(buf, buf.length, packet.getAddress(), packet.getPort());
 			try {
-				socket.send(outPacket);
+				selector.close();
 			} catch (IOException e) {
-				
-				writeToShell("ERROR: Failed to send udp answer to " + packet.getAddress().getHostAddress());
-			}		
+				// nothing left to release
+			}
+		}
+		
+		private ByteBuffer answer(ByteBuffer request)
+		{
+			if(isList(request))
+				return listPages.firstPage();
 			
+			String msg = StandardCharsets.UTF_8.decode(request).toString();
+			if(msg.startsWith("!list "))								// !list <version> <page>
+			{
+				String[] parts = msg.split(" ");
+				try {
+					return listPages.page(Long.parseLong(parts[1]), Integer.parseInt(parts[2]));
+				} catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					// fall through
+				}
+			}
+			return unknownCommand.duplicate();
 		}
 		
+		// compares the request to "!list" without decoding it
+		private boolean isList(ByteBuffer request)
+		{
+			if(request.remaining() != listCommand.length)
+				return false;
+			for(int i = 0; i < listCommand.length; i++)
+			{
+				if(request.get(request.position() + i) != listCommand[i])
+					return false;
+			}
+			return true;
+		}
 	}
 	
 
+	// Thread appending the statistics to a file at a fixed interval
+	private class StatsDumpThread implements Runnable
+	{
+		private Path file;
+		private long intervalMillis;
+		private CountDownLatch stopped = new CountDownLatch(1);
+		
+		public StatsDumpThread(Path file, long intervalMillis)
+		{
+			this.file = file;
+			this.intervalMillis = intervalMillis;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(!stopped.await(intervalMillis, TimeUnit.MILLISECONDS))
+				{
+					String dump = LocalDateTime.now() + "\n" + statistics() + "\n\n";
+					try {
+						Files.write(file, dump.getBytes(StandardCharsets.UTF_8),
+								StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+					} catch (IOException e) {
+						writeToShell("ERROR: Could not write statistics to " + file + ": " + e.getMessage());
+					}
+				}
+			} catch (InterruptedException e) {
+				// stop dumping
+			}
+		}
+		
+		public void close()
+		{
+			stopped.countDown();
+		}
+	}
+
 	@Override
 	public void run() {
 
 		shell = new Shell("[" + this.componentName + "]shell", this.userRequestStream, this.userResponseStream);
 		shell.register(this);
 		threadPool.execute(shell);
+		
+		// pick up changes of user.properties without a restart
+		if(credentials.isReloadable())
+			threadPool.execute(credentials);
+		threadPool.execute(history);
+		if(cluster != null)
+		{
+			cluster.start(threadPool);
+			writeToShell("Joined cluster as node " + cluster.getNode() + ".");
+		}
+		String statsFile = config.getString("stats.file", "");
+		if(!statsFile.isEmpty())
+		{
+			statsDump = new StatsDumpThread(Paths.get(statsFile),
+					TimeUnit.SECONDS.toMillis(config.getInt("stats.interval", 10)));
+			threadPool.execute(statsDump);
+		}
 
 		writeToShell("Starting Chatserver. Using Tcp Port: " + config.getString("tcp.port") + 
 				", Udp Port: " + config.getString("udp.port"));
 		
 		// start TCP and UDP listeners for new connections
-		threadPool.execute(new TCPMainListenerThread(tcpSocket));
+		if(tcpChannel != null)
+		{
+			try {
+				reactor = new TCPReactor(tcpChannel, config.getInt("reactor.threads", 2), new TCPReactor.HandlerFactory() {
+					@Override
+					public LineHandler create(ClientConnection connection) {
+						return new TCPConnectionHandler(connection);
+					}
+				}, outboundPolicy, metrics);
+				reactor.start(threadPool);
+			} catch (IOException e) {
+				writeToShell("ERROR: Could not start TCP reactor: " + e.getMessage());
+			}
+		}
+		else
+			threadPool.execute(new TCPMainListenerThread(tcpSocket));
 		//writeToShell("Started TCP Main Thread.");
 		
-		threadPool.execute(new UDPMainListenerThread(udpSocket));
+		try {
+			udpListener = new UDPListenerThread(udpChannel);
+			threadPool.execute(udpListener);
+		} catch (IOException e) {
+			writeToShell("ERROR: Could not start UDP listener: " + e.getMessage());
+		}
 		//writeToShell("Started UDP Main Thread.");
 	}
 
@@ -423,24 +936,67 @@ public class Chatserver implements IChatserverCli, Runnable {
 		//userResponseStream.println("!users called");
 		String result = "";
 		int counter = 1;
-		// Assumes that only one password per user is saved in user.config
-				
-		// use TreeSet for alphabetical sorting
-		Set<String> users = new TreeSet<String>(userConfig.listKeys());
-		for(String user : users)
+		// names are kept in alphabetical order by the credential index
+		for(String username : credentials.get().getNames())
 		{
-			String username = user.substring(0, user.lastIndexOf("."));
 			result += counter++ + ". " + username;
-			synchronized (onlineUsers) {
-				if(onlineUsers.containsKey(username))
-					result += "  online\n";
-				else
-					result += "  offline\n";
-			}
+			if(onlineUsers.isOnline(username))
+				result += "  online\n";
+			else
+				result += "  offline\n";
 		}
 		return result;
 	}
 
+	/**
+	 * Prints the metrics of the thread pool that runs the connection and
+	 * datagram handlers.
+	 *
+	 * @return the pool metrics
+	 */
+	@Command
+	public String pool() throws IOException {
+		return threadPool.toString();
+	}
+
+	/**
+	 * Prints the settings of the outbound queues and how often each overflow
+	 * policy has been applied.
+	 *
+	 * @return the outbound queue statistics
+	 */
+	@Command
+	public String queues() throws IOException {
+		return outboundPolicy.toString();
+	}
+
+	/**
+	 * Prints how many UDP requests have been answered in total and during the
+	 * last second.
+	 *
+	 * @return the UDP statistics
+	 */
+	@Command
+	public String udp() throws IOException {
+		return String.format("udp: %d packets/s, %d packets received, %d answers dropped",
+				udpPackets.rate(), udpPackets.total(), udpDropped.get());
+	}
+
+	/**
+	 * Prints the counters and latency histograms of the server.
+	 *
+	 * @return the server statistics
+	 */
+	@Command
+	public String stats() throws IOException {
+		return statistics();
+	}
+	
+	private String statistics()
+	{
+		return metrics + "\n" + rooms + "\n" + history + "\n" + mailboxes + (cluster != null ? "\n" + cluster : "");
+	}
+
 	@Override
 	@Command
 	public String exit() throws IOException {
@@ -448,18 +1004,34 @@ public class Chatserver implements IChatserverCli, Runnable {
 		writeToShell("Shutting down Chatserver.");
 		
 		shell.close();
-		udpSocket.close();
-		tcpSocket.close();
+		credentials.close();
+		if(statsDump != null)
+			statsDump.close();
+		if(udpListener != null)
+			udpListener.close();
+		else
+			udpChannel.close();
+		if(reactor != null)
+			reactor.close();
+		else if(tcpChannel != null)
+			tcpChannel.close();
+		if(tcpSocket != null)
+			tcpSocket.close();
+		if(cluster != null)
+			cluster.close();
 		
-		synchronized (onlineUsers) {
-			for(Socket s : onlineUsers.values()) //activeSockets)
-			{
-				s.close();
-			}
-			
-			threadPool.shutdown();
+		for(Session session : onlineUsers.snapshot().getSessions()) //activeSockets)
+		{
+			session.getConnection().close();
 		}
 		
+		// compacts the log, so that the next start only reads the snapshot
+		registeredUsers.close();
+		history.close(1, TimeUnit.SECONDS);
+		mailboxes.close();
+		
+		threadPool.shutdown();
+		
 		//threadPool.shutdownNow();		
 		
 		/*for(Thread t : Thread.getAllStackTraces().keySet())
@@ -0,0 +1,58 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single TCP connection of a client to the {@link Chatserver}, independent of
+ * the front end (blocking or reactor) that serves it.
+ */
+interface ClientConnection {
+
+	/**
+	 * The charset of the lines exchanged with clients.
+	 */
+	Charset CHARSET = StandardCharsets.UTF_8;
+
+	/**
+	 * Sends the given line to the client. Implementations only enqueue the
+	 * line and never block the caller on network I/O.
+	 *
+	 * @param line
+	 *            the line to send, without line terminator
+	 */
+	void sendLine(String line);
+
+	/**
+	 * Sends an already encoded message to the client. The buffer may be shared
+	 * with other connections: its content must not be modified and its position
+	 * is left untouched.
+	 *
+	 * @param message
+	 *            the encoded message including the line terminator
+	 */
+	void send(ByteBuffer message);
+
+	/**
+	 * Sends the given line and compresses everything sent afterwards into one
+	 * deflate stream, see {@link OutboundCompressor}. Only negotiated before
+	 * the login, while nothing else is queued for the client.
+	 *
+	 * @param line
+	 *            the acknowledgement of the negotiation, sent uncompressed
+	 * @param level
+	 *            the compression level, 1 (fastest) to 9 (smallest)
+	 */
+	void startCompression(String line, int level);
+
+	/**
+	 * Closes the connection after all lines sent so far have been written.
+	 */
+	void close();
+
+	/**
+	 * @return the host address of the remote client
+	 */
+	String getHostAddress();
+}
@@ -0,0 +1,566 @@
+package chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import util.Config;
+import util.Frames;
+
+/**
+ * Links a {@link Chatserver} with the other nodes of a cluster, so that users
+ * connected to different nodes can chat with each other.
+ * <p/>
+ * Every node dials all nodes listed in {@code cluster.peers} and accepts the
+ * links of the other nodes on {@code cluster.port}; the peers have to form a
+ * full mesh. A link only carries frames from the dialing node to the accepting
+ * one, framed like {@link Frames}:
+ * <ul>
+ * <li>{@link #NODE}: the name of the dialing node, answered with the name of
+ * the accepting node,</li>
+ * <li>{@link #ONLINE}, {@link #OFFLINE}: a user logged in or out,</li>
+ * <li>{@link #BROADCAST}: a public message, encoded as sent to the clients,</li>
+ * <li>{@link #DELIVER}: a private message for a user of the accepting node,</li>
+ * <li>{@link #ADDRESS}: a private address registered by a user,</li>
+ * <li>{@link #ROOM}: a message sent to a room.</li>
+ * </ul>
+ * After a link has been (re)established, the dialing node sends all its
+ * online users and registered addresses, followed by the changes. Users of
+ * other nodes are kept in the {@link PresenceRegistry} as sessions with a
+ * {@link Session#getNode() node}, so {@code !list}, {@code !users} and the
+ * check for duplicate logins see the users of the whole cluster; they are
+ * removed as soon as the link of their node breaks.
+ */
+class Cluster {
+
+	/**
+	 * Delivers the messages received from other nodes to the users of this
+	 * node.
+	 */
+	interface Delivery {
+		/**
+		 * @param message
+		 *            a public message, to be sent to all users of this node
+		 */
+		void broadcast(ByteBuffer message);
+
+		/**
+		 * @param message
+		 *            a private message for the given user of this node
+		 */
+		void deliver(String name, ByteBuffer message);
+
+		/**
+		 * @param message
+		 *            a message sent to the given room, to be sent to the
+		 *            members of the room at this node
+		 */
+		void sendTo(String room, ByteBuffer message);
+	}
+
+	/** payload: the node name */
+	static final byte NODE = 1;
+	/** payload: the user name */
+	static final byte ONLINE = 2;
+	/** payload: the user name */
+	static final byte OFFLINE = 3;
+	/** payload: the encoded message */
+	static final byte BROADCAST = 4;
+	/** payload: {@code <username>\n<encoded message>} */
+	static final byte DELIVER = 5;
+	/** payload: {@code <username>\n<IP:port>} */
+	static final byte ADDRESS = 6;
+	/** payload: {@code <room>\n<encoded message>} */
+	static final byte ROOM = 7;
+
+	private static final int MAX_FRAME_LENGTH = 1024 * 1024;
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	private static final long RECONNECT_MILLIS = 1000;
+
+	private final String node;
+	private final ServerSocket listener;
+	private final List<Peer> peers = new ArrayList<>();
+	private final ConcurrentMap<String, Peer> peersByNode = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, Link> links = new ConcurrentHashMap<>();
+	private final PresenceRegistry registry;
+	private final AddressStore addresses;
+	private final Delivery delivery;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	private final LongAdder broadcastsSent = new LongAdder();
+	private final LongAdder broadcastsReceived = new LongAdder();
+	private final LongAdder deliveriesSent = new LongAdder();
+	private final LongAdder deliveriesReceived = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+
+	private Cluster(String node, ServerSocket listener, PresenceRegistry registry,
+			AddressStore addresses, Delivery delivery) {
+		this.node = node;
+		this.listener = listener;
+		this.registry = registry;
+		this.addresses = addresses;
+		this.delivery = delivery;
+	}
+
+	/**
+	 * Binds the cluster port as configured by the {@code cluster.*} keys.
+	 *
+	 * @return the cluster, or {@code null} if {@code cluster.node} is not set
+	 * @throws IOException
+	 *             if the cluster port cannot be bound
+	 */
+	static Cluster open(Config config, PresenceRegistry registry, AddressStore addresses,
+			Delivery delivery) throws IOException {
+		String node = config.getString("cluster.node", "").trim();
+		if (node.isEmpty()) {
+			return null;
+		}
+		Cluster cluster = new Cluster(node, new ServerSocket(config.getInt("cluster.port")),
+				registry, addresses, delivery);
+		OutboundPolicy policy = new OutboundPolicy(config.getInt("cluster.queue", 65536),
+				config.getInt("outbound.batch", 64), OutboundPolicy.Overflow.DISCONNECT);
+		for (String peer : config.getString("cluster.peers", "").split(",")) {
+			peer = peer.trim();
+			int colon = peer.lastIndexOf(':');
+			if (colon > 0) {
+				cluster.peers.add(cluster.new Peer(new InetSocketAddress(peer.substring(0, colon),
+						Integer.parseInt(peer.substring(colon + 1))), new OutboundQueue(policy)));
+			}
+		}
+		return cluster;
+	}
+
+	/**
+	 * Starts accepting the links of the other nodes and dialing the peers.
+	 */
+	void start(Executor executor) {
+		executor.execute(new Acceptor(executor));
+		for (Peer peer : peers) {
+			executor.execute(peer);
+		}
+	}
+
+	/**
+	 * @return the name of this node
+	 */
+	String getNode() {
+		return node;
+	}
+
+	/**
+	 * Announces a user who logged in at this node.
+	 */
+	void online(Session session) {
+		sendToAll(frame(ONLINE, session.getName()));
+	}
+
+	/**
+	 * Announces a user of this node who logged out.
+	 */
+	void offline(Session session) {
+		sendToAll(frame(OFFLINE, session.getName()));
+	}
+
+	/**
+	 * Relays a public message sent by a user of this node to all other nodes.
+	 *
+	 * @param message
+	 *            the encoded message as sent to the clients
+	 */
+	void broadcast(ByteBuffer message) {
+		broadcastsSent.increment();
+		sendToAll(frame(BROADCAST, message.duplicate()));
+	}
+
+	/**
+	 * Relays a message sent to a room by a user of this node to all other
+	 * nodes, which deliver it to the members of the room they serve.
+	 */
+	void sendTo(String room, ByteBuffer message) {
+		broadcastsSent.increment();
+		sendToAll(frame(ROOM, ClientConnection.CHARSET.encode(room + "\n"), message.duplicate()));
+	}
+
+	/**
+	 * Shares an address registered by a user of this node.
+	 */
+	void addressRegistered(String name, String address) {
+		sendToAll(frame(ADDRESS, name + "\n" + address));
+	}
+
+	private void sendToAll(ByteBuffer frame) {
+		for (Peer peer : peers) {
+			peer.send(frame);
+		}
+	}
+
+	/**
+	 * Stops linking with the other nodes. The users of the other nodes are
+	 * removed from the registry.
+	 */
+	void close() {
+		stopped.countDown();
+		try {
+			listener.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		for (Peer peer : peers) {
+			peer.close();
+		}
+		for (Link link : links.values()) {
+			link.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		int remoteUsers = 0;
+		for (Link link : links.values()) {
+			remoteUsers += link.sessions.size();
+		}
+		return String.format("cluster: node %s, %d of %d peers linked, %d users on other nodes, "
+				+ "broadcasts: %d relayed, %d received, private messages: %d relayed, %d received, %d reconnects",
+				node, peersByNode.size(), peers.size(), remoteUsers,
+				broadcastsSent.sum(), broadcastsReceived.sum(),
+				deliveriesSent.sum(), deliveriesReceived.sum(), reconnects.sum());
+	}
+
+	// encodes a frame with a text payload
+	private static ByteBuffer frame(byte opcode, String payload) {
+		return frame(opcode, ClientConnection.CHARSET.encode(payload));
+	}
+
+	private static ByteBuffer frame(byte opcode, ByteBuffer... parts) {
+		int length = 0;
+		for (ByteBuffer part : parts) {
+			length += part.remaining();
+		}
+		ByteBuffer frame = ByteBuffer.allocate(Frames.HEADER_LENGTH + length);
+		frame.put(opcode).putInt(length);
+		for (ByteBuffer part : parts) {
+			frame.put(part);
+		}
+		frame.flip();
+		return frame.asReadOnlyBuffer();
+	}
+
+	// The link to another node, dialed and re-dialed by this node
+	private final class Peer implements Runnable {
+
+		private final InetSocketAddress address;
+		private final OutboundQueue queue;
+		private volatile SocketChannel channel;
+		// changes are only queued while linked, a new link starts with a full sync
+		private volatile boolean linked;
+		private String peerNode;
+
+		Peer(InetSocketAddress address, OutboundQueue queue) {
+			this.address = address;
+			this.queue = queue;
+		}
+
+		void send(ByteBuffer frame) {
+			if (linked && !queue.offer(frame.duplicate())) {
+				// the node does not keep up, start over with a full sync
+				disconnect();
+			}
+		}
+
+		@Override
+		public void run() {
+			List<ByteBuffer> batch = new ArrayList<>();
+			try {
+				while (stopped.getCount() > 0) {
+					try {
+						link();
+						while (queue.awaitDrainTo(batch) > 0) {
+							write(batch.toArray(new ByteBuffer[batch.size()]));
+							batch.clear();
+						}
+					} catch (IOException e) {
+						batch.clear();
+						disconnect();
+						reconnects.increment();
+					}
+					stopped.await(RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				// stop dialing
+			} finally {
+				disconnect();
+			}
+		}
+
+		// connects, exchanges the node names and sends the state of this node
+		private void link() throws IOException {
+			SocketChannel channel = SocketChannel.open();
+			this.channel = channel;
+			if (stopped.getCount() == 0) {
+				throw new IOException("cluster closed");
+			}
+			channel.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+			channel.socket().setTcpNoDelay(true);
+			write(frame(NODE, node));
+
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			if (in.readByte() != NODE) {
+				throw new IOException("unexpected handshake from " + address);
+			}
+			byte[] name = new byte[readLength(in)];
+			in.readFully(name);
+			peerNode = new String(name, ClientConnection.CHARSET);
+			peersByNode.put(peerNode, this);
+
+			queue.clear();
+			linked = true;
+			for (Session session : registry.snapshot().getSessions()) {
+				if (session.getNode() == null) {
+					write(frame(ONLINE, session.getName()));
+				}
+			}
+			for (Map.Entry<String, String> entry : addresses.entries().entrySet()) {
+				write(frame(ADDRESS, entry.getKey() + "\n" + entry.getValue()));
+			}
+		}
+
+		private void write(ByteBuffer... frames) throws IOException {
+			SocketChannel channel = this.channel;
+			while (frames[frames.length - 1].hasRemaining()) {
+				channel.write(frames);
+			}
+		}
+
+		private void disconnect() {
+			linked = false;
+			if (peerNode != null) {
+				peersByNode.remove(peerNode, this);
+			}
+			SocketChannel channel = this.channel;
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// already closed
+				}
+			}
+		}
+
+		void close() {
+			queue.close();
+			disconnect();
+		}
+	}
+
+	// Thread accepting the links of the other nodes
+	private class Acceptor implements Runnable {
+
+		private final Executor executor;
+
+		Acceptor(Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Socket socket = listener.accept();
+					socket.setTcpNoDelay(true);
+					executor.execute(new Link(socket));
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	// Thread reading the link dialed by another node
+	private final class Link implements Runnable {
+
+		private final Socket socket;
+		private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+		private String linkNode;
+
+		Link(Socket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		public void run() {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+				while (true) {
+					byte opcode = in.readByte();
+					byte[] payload = new byte[readLength(in)];
+					in.readFully(payload);
+					if (linkNode == null && opcode != NODE) {
+						break;
+					}
+					handle(opcode, payload);
+				}
+			} catch (IOException e) {
+				// the node is gone
+			} finally {
+				close();
+			}
+		}
+
+		private void handle(byte opcode, byte[] payload) throws IOException {
+			switch (opcode) {
+			case NODE:
+				linkNode = new String(payload, ClientConnection.CHARSET);
+				// a reconnecting node replaces its previous link and sends all its users again
+				Link previous = links.put(linkNode, this);
+				if (previous != null) {
+					previous.close();
+				}
+				ByteBuffer reply = frame(NODE, node);
+				Channels.newChannel(socket.getOutputStream()).write(reply);
+				break;
+			case ONLINE:
+				String name = text(payload, 0, payload.length);
+				Session session = new Session(name, new RemoteConnection(linkNode, name,
+						socket.getInetAddress().getHostAddress()), linkNode);
+				if (registry.reserve(session)) {
+					registry.activate(session);
+					sessions.put(name, session);
+				}
+				break;
+			case OFFLINE:
+				Session gone = sessions.remove(text(payload, 0, payload.length));
+				if (gone != null) {
+					registry.logout(gone);
+				}
+				break;
+			case BROADCAST:
+				broadcastsReceived.increment();
+				delivery.broadcast(ByteBuffer.wrap(payload).asReadOnlyBuffer());
+				break;
+			case DELIVER:
+				int separator = indexOf(payload, (byte) '\n');
+				if (separator > 0) {
+					deliveriesReceived.increment();
+					delivery.deliver(text(payload, 0, separator),
+							ByteBuffer.wrap(payload, separator + 1, payload.length - separator - 1).slice().asReadOnlyBuffer());
+				}
+				break;
+			case ROOM:
+				int end = indexOf(payload, (byte) '\n');
+				if (end > 0) {
+					broadcastsReceived.increment();
+					delivery.sendTo(text(payload, 0, end),
+							ByteBuffer.wrap(payload, end + 1, payload.length - end - 1).slice().asReadOnlyBuffer());
+				}
+				break;
+			case ADDRESS:
+				int colon = indexOf(payload, (byte) '\n');
+				if (colon > 0) {
+					String user = text(payload, 0, colon);
+					String address = text(payload, colon + 1, payload.length - colon - 1);
+					if (!address.equals(addresses.get(user))) {
+						addresses.put(user, address);
+					}
+				}
+				break;
+			default:
+				// unknown frames are ignored
+				break;
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+			if (linkNode != null) {
+				links.remove(linkNode, this);
+			}
+			for (Session session : sessions.values()) {
+				registry.logout(session);
+			}
+			sessions.clear();
+		}
+	}
+
+	// The connection of a user of another node, private messages are sent through the link to that node
+	private final class RemoteConnection implements ClientConnection {
+
+		private final String userNode;
+		private final String name;
+		private final String hostAddress;
+
+		RemoteConnection(String userNode, String name, String hostAddress) {
+			this.userNode = userNode;
+			this.name = name;
+			this.hostAddress = hostAddress;
+		}
+
+		@Override
+		public void sendLine(String line) {
+			send(CHARSET.encode(line + "\n"));
+		}
+
+		@Override
+		public void send(ByteBuffer message) {
+			Peer peer = peersByNode.get(userNode);
+			if (peer != null) {
+				deliveriesSent.increment();
+				peer.send(frame(DELIVER, CHARSET.encode(name + "\n"), message.duplicate()));
+			}
+		}
+
+		@Override
+		public void startCompression(String line, int level) {
+			// only negotiated by local clients
+			sendLine(line);
+		}
+
+		@Override
+		public void close() {
+			// the user stays connected to its node
+		}
+
+		@Override
+		public String getHostAddress() {
+			return hostAddress;
+		}
+	}
+
+	private static int readLength(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new IOException("Frame too long: " + length + " bytes");
+		}
+		return length;
+	}
+
+	private static int indexOf(byte[] bytes, byte b) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static String text(byte[] bytes, int offset, int length) {
+		return new String(bytes, offset, length, ClientConnection.CHARSET);
+	}
+}
@@ -0,0 +1,168 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Immutable index of the user credentials read from a {@code user.properties}
+ * file.
+ * <p/>
+ * Every {@code <user>.password} entry is either a plain password or a salted
+ * SHA-256 hash of the form
+ *
+ * <pre>
+ * {SSHA256}&lt;base64 salt&gt;$&lt;base64 sha256(salt + password)&gt;
+ * </pre>
+ *
+ * which can be generated with {@link #main(String[])}. Plain passwords are
+ * stored as unsalted digests, so both kinds are verified the same way with a
+ * constant-time comparison.
+ */
+final class CredentialIndex {
+
+	private static final String SUFFIX = ".password";
+	private static final String SALTED = "{SSHA256}";
+
+	private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	// used for unknown users, so that their logins take as long as any other
+	private static final Credential DUMMY = new Credential(new byte[16], new byte[32]);
+
+	private static final class Credential {
+		final byte[] salt;
+		final byte[] digest;
+
+		Credential(byte[] salt, byte[] digest) {
+			this.salt = salt;
+			this.digest = digest;
+		}
+	}
+
+	private final Map<String, Credential> credentials;
+	private final String[] names;
+
+	private CredentialIndex(Map<String, Credential> credentials) {
+		this.credentials = credentials;
+		this.names = new TreeSet<>(credentials.keySet()).toArray(new String[0]);
+	}
+
+	/**
+	 * Reads the index from the given properties file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or contains a malformed hash
+	 */
+	static CredentialIndex load(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			return load(in);
+		}
+	}
+
+	/**
+	 * Reads the index from the given properties stream.
+	 *
+	 * @throws IOException
+	 *             if the stream cannot be read or contains a malformed hash
+	 */
+	static CredentialIndex load(InputStream in) throws IOException {
+		Properties properties = new Properties();
+		properties.load(in);
+
+		Map<String, Credential> credentials = new HashMap<>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.endsWith(SUFFIX)) {
+				String name = key.substring(0, key.length() - SUFFIX.length());
+				credentials.put(name, parse(properties.getProperty(key).trim()));
+			}
+		}
+		return new CredentialIndex(Collections.unmodifiableMap(credentials));
+	}
+
+	private static Credential parse(String value) throws IOException {
+		if (!value.startsWith(SALTED)) {
+			return new Credential(new byte[0], digest(new byte[0], value));
+		}
+		String[] parts = value.substring(SALTED.length()).split("\\$");
+		try {
+			return new Credential(Base64.getDecoder().decode(parts[0]),
+					Base64.getDecoder().decode(parts[1]));
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Malformed password hash: " + value, e);
+		}
+	}
+
+	private static byte[] digest(byte[] salt, String password) {
+		MessageDigest sha = SHA256.get();
+		sha.update(salt);
+		return sha.digest(password.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Checks the given password in constant time.
+	 *
+	 * @return {@code true} if the user exists and the password matches
+	 */
+	boolean verify(String name, String password) {
+		Credential credential = credentials.get(name);
+		boolean known = credential != null;
+		if (!known) {
+			credential = DUMMY;
+		}
+		return MessageDigest.isEqual(digest(credential.salt, password),
+				credential.digest) && known;
+	}
+
+	boolean contains(String name) {
+		return credentials.containsKey(name);
+	}
+
+	/**
+	 * @return all user names in alphabetical order, must not be modified
+	 */
+	String[] getNames() {
+		return names;
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Prints a salted hash for the given password that can be used as value in
+	 * {@code user.properties}.
+	 *
+	 * @param args
+	 *            the password
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: CredentialIndex <password>");
+			return;
+		}
+		byte[] salt = new byte[16];
+		new SecureRandom().nextBytes(salt);
+		System.out.println(SALTED + Base64.getEncoder().encodeToString(salt) + "$"
+				+ Base64.getEncoder().encodeToString(digest(salt, args[0])));
+	}
+}
@@ -0,0 +1,159 @@
+package chatserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import util.Config;
+
+/**
+ * Holds the current {@link CredentialIndex} and replaces it atomically whenever
+ * the underlying {@code user.properties} file changes.
+ * <p/>
+ * The file is given by the key {@code users.file}; if the key is missing,
+ * {@code user.properties} is looked up in the classpath. Reloading requires the
+ * file to be located in the file system, otherwise the index is read once.
+ */
+class CredentialStore implements Runnable {
+
+	/**
+	 * Is notified about reloads of the index.
+	 */
+	interface Listener {
+		void reloaded(CredentialIndex index);
+
+		void reloadFailed(Path file, IOException e);
+	}
+
+	private final Path file;
+	private final Listener listener;
+	private volatile CredentialIndex index;
+	private WatchService watcher;
+	private boolean closed;
+
+	private CredentialStore(Path file, CredentialIndex index, Listener listener) {
+		this.file = file;
+		this.index = index;
+		this.listener = listener;
+	}
+
+	/**
+	 * Reads the credentials as configured by the given configuration.
+	 *
+	 * @throws IOException
+	 *             if the credentials cannot be read
+	 */
+	static CredentialStore open(Config config, Listener listener) throws IOException {
+		String configured = config.getString("users.file", null);
+		if (configured != null) {
+			Path file = Paths.get(configured).toAbsolutePath();
+			return new CredentialStore(file, CredentialIndex.load(file), listener);
+		}
+
+		URL url = CredentialStore.class.getClassLoader().getResource("user.properties");
+		if (url == null) {
+			throw new IOException("user.properties not found in classpath");
+		}
+		if (url.getProtocol().equals("file")) {
+			try {
+				Path file = Paths.get(url.toURI());
+				return new CredentialStore(file, CredentialIndex.load(file), listener);
+			} catch (URISyntaxException e) {
+				// fall back to a static index
+			}
+		}
+		try (InputStream in = url.openStream()) {
+			return new CredentialStore(null, CredentialIndex.load(in), listener);
+		}
+	}
+
+	/**
+	 * @return the current index
+	 */
+	CredentialIndex get() {
+		return index;
+	}
+
+	/**
+	 * @return whether changes of the file are picked up
+	 */
+	boolean isReloadable() {
+		return file != null;
+	}
+
+	/**
+	 * Reads the file again and swaps the index. If the file cannot be read,
+	 * the previous index stays in place.
+	 */
+	void reload() {
+		if (file == null) {
+			return;
+		}
+		try {
+			index = CredentialIndex.load(file);
+			listener.reloaded(index);
+		} catch (IOException e) {
+			listener.reloadFailed(file, e);
+		}
+	}
+
+	// watches the directory of the file until closed
+	@Override
+	public void run() {
+		if (file == null) {
+			return;
+		}
+		try {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				watcher = FileSystems.getDefault().newWatchService();
+			}
+			file.getParent().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (file.getFileName().equals(event.context())) {
+						changed = true;
+					}
+				}
+				key.reset();
+				if (changed) {
+					// give the writer a moment to finish the file
+					Thread.sleep(50);
+					reload();
+				}
+			}
+		} catch (IOException | InterruptedException | ClosedWatchServiceException e) {
+			// stopped watching
+		}
+	}
+
+	/**
+	 * Stops watching the file.
+	 */
+	synchronized void close() {
+		closed = true;
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+
+import util.Frames;
+
+/**
+ * Splits the bytes received from a client into text lines or, once the client
+ * has negotiated the binary protocol, into {@link Frames} and passes them to the
+ * {@link LineHandler} of the connection.
+ * <p/>
+ * The front end reads into {@link #buffer()} and calls {@link #decode()}
+ * afterwards. Frame payloads are handed to the handler as views of the read
+ * buffer, without copying.
+ */
+class InboundDecoder {
+
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private final ClientConnection connection;
+	private final LineHandler handler;
+	private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private boolean binary;
+
+	InboundDecoder(ClientConnection connection, LineHandler handler) {
+		this.connection = connection;
+		this.handler = handler;
+	}
+
+	/**
+	 * @return the buffer to read the next bytes of the client into
+	 */
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Passes all complete lines or frames read so far to the handler and keeps
+	 * the remainder for the next read.
+	 *
+	 * @return {@code false} if the connection is to be closed, either on
+	 *         request of the handler or because the client sent a line or frame
+	 *         that is too long
+	 */
+	boolean decode() {
+		buffer.flip();
+		boolean open = binary ? decodeFrames() : decodeLines();
+		buffer.compact();
+		if (!open) {
+			return false;
+		}
+
+		if (!buffer.hasRemaining()) {
+			if (buffer.capacity() >= Frames.MAX_FRAME_LENGTH) {
+				return false;
+			}
+			ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		return true;
+	}
+
+	private boolean decodeLines() {
+		int start = buffer.position();
+		for (int i = start; i < buffer.limit(); i++) {
+			if (buffer.get(i) != '\n') {
+				continue;
+			}
+			int end = i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(start).limit(end);
+			String line = ClientConnection.CHARSET.decode(slice).toString();
+			start = i + 1;
+			buffer.position(start);
+
+			if (line.equals(Frames.NEGOTIATE)) {
+				connection.sendLine(Frames.NEGOTIATE);
+				binary = true;
+				return decodeFrames();
+			}
+			if (!handler.onLine(line)) {
+				return false;
+			}
+		}
+		buffer.position(start);
+		return true;
+	}
+
+	private boolean decodeFrames() {
+		while (buffer.remaining() >= Frames.HEADER_LENGTH) {
+			int start = buffer.position();
+			byte opcode = buffer.get(start);
+			int length = buffer.getInt(start + 1);
+			if (length < 0 || length > Frames.MAX_PAYLOAD_LENGTH) {
+				return false;
+			}
+			if (buffer.remaining() < Frames.HEADER_LENGTH + length) {
+				break;
+			}
+			int end = start + Frames.HEADER_LENGTH + length;
+			ByteBuffer payload = buffer.duplicate();
+			payload.position(start + Frames.HEADER_LENGTH).limit(end);
+			buffer.position(end);
+			if (!handler.onFrame(opcode, payload)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
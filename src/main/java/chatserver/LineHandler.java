@@ -0,0 +1,35 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the lines and frames read from a {@link ClientConnection}.
+ */
+interface LineHandler {
+
+	/**
+	 * Handles a single line sent by the client.
+	 *
+	 * @param line
+	 *            the line, without line terminator
+	 * @return {@code false} if the connection is to be closed
+	 */
+	boolean onLine(String line);
+
+	/**
+	 * Handles a single frame sent by a client that uses the binary protocol.
+	 *
+	 * @param opcode
+	 *            the command, one of the opcodes of {@link util.Frames}
+	 * @param payload
+	 *            a view of the UTF-8 payload in the read buffer, only valid
+	 *            during the call
+	 * @return {@code false} if the connection is to be closed
+	 */
+	boolean onFrame(byte opcode, ByteBuffer payload);
+
+	/**
+	 * Called exactly once after the connection has been closed.
+	 */
+	void onClose();
+}
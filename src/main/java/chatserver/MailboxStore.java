@@ -0,0 +1,225 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Config;
+
+/**
+ * Private messages relayed by the {@link Chatserver} for users that are
+ * offline, delivered in one batch at their next login.
+ * <p/>
+ * A mailbox holds the messages as encoded lines, exactly as they are sent to
+ * the client. All mailboxes together keep at most {@code mailbox.memory} bytes
+ * in memory; beyond that, a mailbox is spilled to a file in
+ * {@code mailbox.dir} and further messages are appended to that file. A single
+ * mailbox never grows beyond {@code mailbox.user.bytes}. On shutdown all
+ * mailboxes are spilled, so stored messages survive a restart.
+ */
+class MailboxStore {
+
+	private static final String SUFFIX = ".mbox";
+
+	// The messages of a single user
+	private static final class Mailbox {
+		byte[] data = new byte[0];
+		int size;
+		long total;
+		boolean spilled;
+		// set once the mailbox has been delivered, a new one is created for further messages
+		boolean taken;
+	}
+
+	private final Path dir;
+	private final long memoryBudget;
+	private final int userLimit;
+	private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+	private final AtomicLong memory = new AtomicLong();
+
+	private MailboxStore(Path dir, long memoryBudget, int userLimit) {
+		this.dir = dir;
+		this.memoryBudget = memoryBudget;
+		this.userLimit = userLimit;
+	}
+
+	/**
+	 * Opens the mailboxes as configured by the {@code mailbox.*} keys,
+	 * including the ones spilled by a previous run.
+	 *
+	 * @throws IOException
+	 *             if the directory cannot be read or created
+	 */
+	static MailboxStore open(Config config) throws IOException {
+		MailboxStore store = new MailboxStore(
+				Paths.get(config.getString("mailbox.dir", "data/mailboxes")),
+				config.getInt("mailbox.memory", 4 * 1024 * 1024),
+				config.getInt("mailbox.user.bytes", 64 * 1024));
+		Files.createDirectories(store.dir);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(store.dir, "*" + SUFFIX)) {
+			for (Path file : stream) {
+				String name = file.getFileName().toString();
+				Mailbox mailbox = new Mailbox();
+				mailbox.spilled = true;
+				mailbox.total = Files.size(file);
+				store.mailboxes.put(decode(name.substring(0, name.length() - SUFFIX.length())), mailbox);
+			}
+		}
+		return store;
+	}
+
+	/**
+	 * Stores an encoded message for the given user.
+	 *
+	 * @param message
+	 *            the encoded lines as they are to be sent to the user
+	 * @return {@code false} if the mailbox of the user is full
+	 * @throws IOException
+	 *             if the mailbox had to be spilled but cannot be written
+	 */
+	boolean put(String name, ByteBuffer message) throws IOException {
+		int length = message.remaining();
+		while (true) {
+			Mailbox mailbox = mailboxes.get(name);
+			if (mailbox == null) {
+				mailbox = new Mailbox();
+				Mailbox existing = mailboxes.putIfAbsent(name, mailbox);
+				if (existing != null) {
+					mailbox = existing;
+				}
+			}
+			synchronized (mailbox) {
+				if (mailbox.taken) {
+					// delivered in the meantime, start a new mailbox
+					continue;
+				}
+				if (mailbox.total + length > userLimit) {
+					return false;
+				}
+				if (mailbox.spilled || memory.get() + length > memoryBudget) {
+					spill(name, mailbox, message);
+				} else {
+					if (mailbox.size + length > mailbox.data.length) {
+						mailbox.data = Arrays.copyOf(mailbox.data,
+								Math.max(mailbox.size + length, 2 * mailbox.data.length));
+					}
+					message.duplicate().get(mailbox.data, mailbox.size, length);
+					mailbox.size += length;
+					memory.addAndGet(length);
+				}
+				mailbox.total += length;
+				return true;
+			}
+		}
+	}
+
+	// appends the messages held in memory and then the given one to the file of the mailbox
+	private void spill(String name, Mailbox mailbox, ByteBuffer message) throws IOException {
+		try (FileChannel channel = FileChannel.open(file(name), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer held = ByteBuffer.wrap(mailbox.data, 0, mailbox.size);
+			ByteBuffer next = message == null ? ByteBuffer.allocate(0) : message.duplicate();
+			ByteBuffer[] buffers = { held, next };
+			while (held.hasRemaining() || next.hasRemaining()) {
+				channel.write(buffers);
+			}
+		}
+		memory.addAndGet(-mailbox.size);
+		mailbox.data = new byte[0];
+		mailbox.size = 0;
+		mailbox.spilled = true;
+	}
+
+	/**
+	 * Removes the mailbox of the given user.
+	 *
+	 * @return all stored messages in the order they were received, or
+	 *         {@code null} if there are none
+	 * @throws IOException
+	 *             if a spilled mailbox cannot be read; it is kept for the next
+	 *             attempt
+	 */
+	ByteBuffer take(String name) throws IOException {
+		Mailbox mailbox = mailboxes.get(name);
+		if (mailbox == null) {
+			return null;
+		}
+		synchronized (mailbox) {
+			if (mailbox.taken) {
+				return null;
+			}
+			ByteBuffer messages;
+			if (mailbox.spilled) {
+				Path file = file(name);
+				byte[] stored = Files.readAllBytes(file);
+				messages = ByteBuffer.allocate(stored.length + mailbox.size);
+				messages.put(stored);
+				Files.delete(file);
+			} else {
+				messages = ByteBuffer.allocate(mailbox.size);
+			}
+			messages.put(mailbox.data, 0, mailbox.size).flip();
+			memory.addAndGet(-mailbox.size);
+			mailbox.taken = true;
+			mailboxes.remove(name, mailbox);
+			return messages.hasRemaining() ? messages.asReadOnlyBuffer() : null;
+		}
+	}
+
+	/**
+	 * Spills all mailboxes held in memory, so that they are delivered after a
+	 * restart.
+	 */
+	void close() {
+		for (String name : mailboxes.keySet()) {
+			Mailbox mailbox = mailboxes.get(name);
+			if (mailbox == null) {
+				continue;
+			}
+			synchronized (mailbox) {
+				if (!mailbox.taken && mailbox.size > 0) {
+					try {
+						spill(name, mailbox, null);
+					} catch (IOException e) {
+						// the messages held in memory are lost
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("mailboxes: %d users, %d bytes in memory", mailboxes.size(), memory.get());
+	}
+
+	private Path file(String name) {
+		return dir.resolve(encode(name) + SUFFIX);
+	}
+
+	// user names are stored hex encoded, so that any name is a valid file name
+	private static String encode(String name) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
+	private static String decode(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,344 @@
+package chatserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Config;
+
+/**
+ * Journal of all public messages, kept in fixed-size memory-mapped segment
+ * files.
+ * <p/>
+ * Broadcasts only hand their encoded message to {@link #append(ByteBuffer)},
+ * which never blocks; a background writer copies the messages into the current
+ * segment and rolls over to a new segment when it is full. Segments are deleted
+ * once the journal exceeds {@code history.retention.bytes} or their last
+ * message is older than {@code history.retention.hours}.
+ * <p/>
+ * Each segment is named after the sequence number of its first message and
+ * holds records of the form
+ *
+ * <pre>
+ * length (4 bytes) | sequence (8 bytes) | timestamp (8 bytes) | lines
+ * </pre>
+ *
+ * where every line of the message is stored as {@code !sm <line>}, so that
+ * {@link #history(int, ClientConnection)} can send the records to a client
+ * straight from the mapped segment. A length of 0 marks the end of a segment.
+ */
+class MessageJournal implements Runnable {
+
+	private static final int RECORD_HEADER = 4 + 8 + 8;
+	private static final byte[] LINE_PREFIX = "!sm ".getBytes(ClientConnection.CHARSET);
+	private static final String SUFFIX = ".seg";
+	private static final long RETENTION_CHECK_MILLIS = 60 * 1000;
+
+	// A single segment file, appended to by the writer only
+	private static final class Segment {
+		final Path file;
+		final MappedByteBuffer buffer;
+		final ByteBuffer readView;
+		final long firstSequence;
+		// start of every record, the first count entries are valid
+		volatile int[] offsets = new int[256];
+		volatile int count;
+		long lastTimestamp;
+
+		Segment(Path file, MappedByteBuffer buffer, long firstSequence) {
+			this.file = file;
+			this.buffer = buffer;
+			this.readView = buffer.asReadOnlyBuffer();
+			this.firstSequence = firstSequence;
+		}
+
+		void add(int offset, long timestamp) {
+			int[] current = offsets;
+			if (count == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+				offsets = current;
+			}
+			current[count] = offset;
+			lastTimestamp = timestamp;
+			count = count + 1;
+		}
+	}
+
+	private final Path dir;
+	private final int segmentSize;
+	private final long retentionBytes;
+	private final long retentionMillis;
+	private final int maxHistory;
+	private final BlockingQueue<ByteBuffer> pending;
+	private final List<Segment> segments = new CopyOnWriteArrayList<>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final CountDownLatch stopped = new CountDownLatch(1);
+	private volatile boolean running = true;
+	private Segment active;
+	private long nextSequence;
+	private long lastRetentionCheck;
+
+	private MessageJournal(Path dir, int segmentSize, long retentionBytes,
+			long retentionMillis, int queueCapacity, int maxHistory) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.retentionBytes = retentionBytes;
+		this.retentionMillis = retentionMillis;
+		this.maxHistory = maxHistory;
+		this.pending = new ArrayBlockingQueue<>(queueCapacity);
+	}
+
+	/**
+	 * Opens the journal as configured by the {@code history.*} keys and
+	 * recovers the segments written so far.
+	 *
+	 * @throws IOException
+	 *             if the segments cannot be read or created
+	 */
+	static MessageJournal open(Config config) throws IOException {
+		MessageJournal journal = new MessageJournal(
+				Paths.get(config.getString("history.dir", "data/history")),
+				Math.max(config.getInt("history.segment.size", 4 * 1024 * 1024), 256 * 1024),
+				config.getInt("history.retention.bytes", 64 * 1024 * 1024),
+				TimeUnit.HOURS.toMillis(config.getInt("history.retention.hours", 168)),
+				config.getInt("history.queue", 8192),
+				config.getInt("history.max", 500));
+		journal.recover();
+		return journal;
+	}
+
+	private void recover() throws IOException {
+		Files.createDirectories(dir);
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		// the zero padded names sort by first sequence number
+		Collections.sort(files);
+
+		for (Path file : files) {
+			String name = file.getFileName().toString();
+			Segment segment = map(file, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+			ByteBuffer buffer = segment.buffer;
+			int position = 0;
+			while (position + RECORD_HEADER <= buffer.limit()) {
+				int length = buffer.getInt(position);
+				if (length <= 0 || position + RECORD_HEADER + length > buffer.limit()) {
+					break;
+				}
+				segment.add(position, buffer.getLong(position + 12));
+				nextSequence = buffer.getLong(position + 4) + 1;
+				position += RECORD_HEADER + length;
+			}
+			buffer.position(position);
+			nextSequence = Math.max(nextSequence, segment.firstSequence + segment.count);
+			segments.add(segment);
+			active = segment;
+		}
+		applyRetention(System.currentTimeMillis());
+	}
+
+	private Segment map(Path file, long firstSequence) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = Math.max(channel.size(), segmentSize);
+			return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), firstSequence);
+		}
+	}
+
+	/**
+	 * Queues the given message for the journal without blocking. If the writer
+	 * falls behind, the message is dropped from the journal.
+	 *
+	 * @param message
+	 *            the encoded message as sent to the clients, each line
+	 *            terminated; it must not be modified afterwards
+	 * @return {@code false} if the message was dropped
+	 */
+	boolean append(ByteBuffer message) {
+		if (!running || !pending.offer(message.duplicate())) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the last messages of the journal to the given connection, oldest
+	 * first. The records are sent as views of the mapped segments.
+	 *
+	 * @param count
+	 *            the number of messages, limited by {@code history.max}
+	 * @return the number of messages sent
+	 */
+	int history(int count, ClientConnection out) {
+		count = Math.min(count, maxHistory);
+		Segment[] snapshot = segments.toArray(new Segment[0]);
+		int[] counts = new int[snapshot.length];
+		for (int i = 0; i < snapshot.length; i++) {
+			counts[i] = snapshot[i].count;
+		}
+
+		// find the segment and record of the first message to send
+		int first = snapshot.length;
+		int skip = 0;
+		int available = 0;
+		while (first > 0 && available < count) {
+			first--;
+			available += counts[first];
+		}
+		if (available > count) {
+			skip = available - count;
+		}
+
+		int sent = 0;
+		for (int i = first; i < snapshot.length && sent < count; i++) {
+			Segment segment = snapshot[i];
+			int records = counts[i];
+			int[] offsets = segment.offsets;
+			for (int r = i == first ? skip : 0; r < records && sent < count; r++) {
+				int offset = offsets[r];
+				ByteBuffer record = segment.readView.duplicate();
+				record.limit(offset + RECORD_HEADER + record.getInt(offset));
+				record.position(offset + RECORD_HEADER);
+				out.send(record);
+				sent++;
+			}
+		}
+		return sent;
+	}
+
+	// writes the queued messages until closed
+	@Override
+	public void run() {
+		List<ByteBuffer> batch = new ArrayList<>();
+		try {
+			while (running || !pending.isEmpty()) {
+				ByteBuffer message = pending.poll(200, TimeUnit.MILLISECONDS);
+				if (message != null) {
+					batch.add(message);
+					pending.drainTo(batch);
+					long now = System.currentTimeMillis();
+					for (ByteBuffer m : batch) {
+						write(m, now);
+					}
+					batch.clear();
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+					applyRetention(now);
+				}
+			}
+		} catch (InterruptedException | IOException e) {
+			// stop writing, the remaining messages are lost
+		} finally {
+			if (active != null) {
+				active.buffer.force();
+			}
+			stopped.countDown();
+		}
+	}
+
+	private void write(ByteBuffer message, long timestamp) throws IOException {
+		int lines = message.hasRemaining() ? 1 : 0;
+		for (int i = message.position(); i < message.limit() - 1; i++) {
+			if (message.get(i) == '\n') {
+				lines++;
+			}
+		}
+		int length = message.remaining() + lines * LINE_PREFIX.length;
+		if (length == 0 || RECORD_HEADER + length > segmentSize) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (active == null || active.buffer.remaining() < RECORD_HEADER + length) {
+			roll(timestamp);
+		}
+
+		ByteBuffer buffer = active.buffer;
+		int offset = buffer.position();
+		buffer.position(offset + RECORD_HEADER);
+		boolean lineStart = true;
+		for (int i = message.position(); i < message.limit(); i++) {
+			byte b = message.get(i);
+			if (lineStart) {
+				buffer.put(LINE_PREFIX);
+			}
+			buffer.put(b);
+			lineStart = b == '\n';
+		}
+		buffer.putLong(offset + 4, nextSequence++);
+		buffer.putLong(offset + 12, timestamp);
+		// the length is written last and marks the record as complete
+		buffer.putInt(offset, length);
+		active.add(offset, timestamp);
+	}
+
+	private void roll(long now) throws IOException {
+		if (active != null) {
+			active.buffer.force();
+		}
+		Path file = dir.resolve(String.format("%020d", nextSequence) + SUFFIX);
+		active = map(file, nextSequence);
+		segments.add(active);
+		applyRetention(now);
+	}
+
+	// deletes the oldest segments, the active one is always kept
+	private void applyRetention(long now) throws IOException {
+		lastRetentionCheck = now;
+		while (segments.size() > 1) {
+			Segment oldest = segments.get(0);
+			boolean tooLarge = (long) segments.size() * segmentSize > retentionBytes;
+			boolean tooOld = oldest.lastTimestamp < now - retentionMillis;
+			if (!tooLarge && !tooOld) {
+				break;
+			}
+			segments.remove(0);
+			// the mapping stays valid for readers still holding the segment
+			Files.deleteIfExists(oldest.file);
+		}
+	}
+
+	/**
+	 * Stops accepting messages and waits up to the given time for the writer
+	 * to store the queued ones.
+	 */
+	void close(long timeout, TimeUnit unit) {
+		running = false;
+		try {
+			stopped.await(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		long stored = 0;
+		for (Segment segment : segments) {
+			stored += segment.count;
+		}
+		return String.format("history: %d messages in %d segments, %d queued, %d dropped",
+				stored, segments.size(), pending.size(), dropped.get());
+	}
+}
@@ -0,0 +1,142 @@
+package chatserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import util.LatencyHistogram;
+
+/**
+ * Counters and latency histograms of a {@link Chatserver}, printed by
+ * {@code !stats}.
+ * <p/>
+ * Counters are striped {@link LongAdder}s and the histograms are lock-free, so
+ * recording never makes the handler threads wait for each other.
+ */
+class Metrics {
+
+	private final OutboundPolicy policy;
+
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder connectionsClosed = new LongAdder();
+	private final LongAdder logins = new LongAdder();
+	private final LongAdder failedLogins = new LongAdder();
+	private final LongAdder broadcasts = new LongAdder();
+	private final LongAdder deliveries = new LongAdder();
+	private final LongAdder lookups = new LongAdder();
+	private final LongAdder udpRequests = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder compressedConnections = new LongAdder();
+	private final LongAdder bytesBeforeCompression = new LongAdder();
+	private final LongAdder bytesAfterCompression = new LongAdder();
+
+	private final LatencyHistogram loginLatency = new LatencyHistogram();
+	private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+	private final LatencyHistogram lookupLatency = new LatencyHistogram();
+	private final LatencyHistogram udpLatency = new LatencyHistogram();
+
+	/**
+	 * @param policy
+	 *            counts the messages dropped from and the consumers
+	 *            disconnected by the outbound queues
+	 */
+	Metrics(OutboundPolicy policy) {
+		this.policy = policy;
+	}
+
+	void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	void connectionClosed() {
+		connectionsClosed.increment();
+	}
+
+	/**
+	 * @param startNanos
+	 *            when the login request was received, see
+	 *            {@link System#nanoTime()}
+	 */
+	void login(boolean successful, long startNanos) {
+		loginLatency.recordSince(startNanos);
+		if (successful) {
+			logins.increment();
+		} else {
+			failedLogins.increment();
+		}
+	}
+
+	/**
+	 * @param recipients
+	 *            the number of connections the message was handed to
+	 */
+	void broadcast(int recipients, long startNanos) {
+		broadcastLatency.recordSince(startNanos);
+		broadcasts.increment();
+		deliveries.add(recipients);
+	}
+
+	void lookup(long startNanos) {
+		lookupLatency.recordSince(startNanos);
+		lookups.increment();
+	}
+
+	/**
+	 * Records a UDP request ({@code !list} or one of its pages) including
+	 * sending the answer.
+	 */
+	void udpRequest(long startNanos) {
+		udpLatency.recordSince(startNanos);
+		udpRequests.increment();
+	}
+
+	void bytesRead(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	void bytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	void compressionStarted() {
+		compressedConnections.increment();
+	}
+
+	/**
+	 * Records a flushed block of a compressed connection.
+	 *
+	 * @param uncompressed
+	 *            the bytes of the messages in the block
+	 * @param compressed
+	 *            the bytes written for them
+	 */
+	void compressed(long uncompressed, long compressed) {
+		bytesBeforeCompression.add(uncompressed);
+		bytesAfterCompression.add(compressed);
+	}
+
+	@Override
+	public String toString() {
+		long opened = connectionsOpened.sum();
+		long closed = connectionsClosed.sum();
+		long uncompressed = bytesBeforeCompression.sum();
+		long compressed = bytesAfterCompression.sum();
+		return String.format("connections: %d open, %d opened, %d closed, %d dropped as slow consumers\n"
+				+ "logins: %d, failed: %d\n"
+				+ "broadcasts: %d, delivered to %d recipients, %d messages dropped\n"
+				+ "lookups: %d, udp requests: %d\n"
+				+ "bytes: %d read, %d written\n"
+				+ "compression: %d connections, %d bytes compressed to %d (%.1f%%)\n"
+				+ "latency login:     %s\n"
+				+ "latency broadcast: %s\n"
+				+ "latency lookup:    %s\n"
+				+ "latency udp:       %s",
+				opened - closed, opened, closed, policy.getDisconnectedConsumers(),
+				logins.sum(), failedLogins.sum(),
+				broadcasts.sum(), deliveries.sum(), policy.getDroppedMessages(),
+				lookups.sum(), udpRequests.sum(),
+				bytesRead.sum(), bytesWritten.sum(),
+				compressedConnections.sum(), uncompressed, compressed,
+				uncompressed == 0 ? 100.0 : 100.0 * compressed / uncompressed,
+				loginLatency, broadcastLatency, lookupLatency, udpLatency);
+	}
+}
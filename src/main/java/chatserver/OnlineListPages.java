@@ -0,0 +1,142 @@
+package chatserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pre-encoded answers to the UDP {@code !list} command.
+ * <p/>
+ * The list of online users is encoded into datagram sized pages once per
+ * version of the {@link PresenceRegistry} and reused until the online users
+ * change. If the list does not fit into a single page, every page but the last
+ * ends with a continuation line
+ *
+ * <pre>
+ * !more &lt;version&gt; &lt;next page&gt;
+ * </pre>
+ *
+ * and the client requests the next page with {@code !list <version> <page>}.
+ * The pages are kept in direct buffers that are sent as they are. Pages of the
+ * current and the previous version are kept; requests for older
+ * versions are answered with {@code !stale}, upon which the client restarts
+ * with a plain {@code !list}.
+ */
+class OnlineListPages {
+
+	static final String MORE = "!more";
+	static final String STALE = "!stale";
+
+	// room left at the end of each page for the continuation line
+	private static final int TRAILER_RESERVE = 48;
+
+	private static final ByteBuffer NO_USERS = direct("No users online.".getBytes(StandardCharsets.UTF_8));
+	private static final ByteBuffer STALE_PAGE = direct(STALE.getBytes(StandardCharsets.UTF_8));
+
+	private static final class Pages {
+		final long version;
+		final ByteBuffer[] pages;
+
+		Pages(long version, ByteBuffer[] pages) {
+			this.version = version;
+			this.pages = pages;
+		}
+	}
+
+	private final PresenceRegistry registry;
+	private final int pageSize;
+	private volatile Pages current = new Pages(-1, new ByteBuffer[0]);
+	private volatile Pages previous = current;
+
+	/**
+	 * @param registry
+	 *            the registry of the online users
+	 * @param pageSize
+	 *            the maximum payload of a single datagram
+	 */
+	OnlineListPages(PresenceRegistry registry, int pageSize) {
+		this.registry = registry;
+		this.pageSize = Math.max(pageSize, 2 * TRAILER_RESERVE);
+	}
+
+	/**
+	 * Returns the first page of the current list of online users.
+	 *
+	 * @return a read-only view of the page, owned by the caller
+	 */
+	ByteBuffer firstPage() {
+		return pages().pages[0].duplicate();
+	}
+
+	/**
+	 * Returns the given page of the given version of the list, or a
+	 * {@code !stale} marker if that version is no longer available.
+	 *
+	 * @return a read-only view of the page, owned by the caller
+	 */
+	ByteBuffer page(long version, int index) {
+		Pages pages = pages();
+		if (pages.version != version) {
+			pages = previous;
+		}
+		if (pages.version != version || index < 0 || index >= pages.pages.length) {
+			return STALE_PAGE.duplicate();
+		}
+		return pages.pages[index].duplicate();
+	}
+
+	// returns the pages of the current registry version, encoding them if necessary
+	private Pages pages() {
+		PresenceRegistry.Snapshot snapshot = registry.snapshot();
+		Pages pages = current;
+		if (pages.version == snapshot.getVersion()) {
+			return pages;
+		}
+		Pages rebuilt = encode(snapshot);
+		synchronized (this) {
+			if (current.version < rebuilt.version) {
+				previous = current;
+				current = rebuilt;
+			}
+		}
+		return rebuilt;
+	}
+
+	private Pages encode(PresenceRegistry.Snapshot snapshot) {
+		Session[] sessions = snapshot.getSessions();
+		if (sessions.length == 0) {
+			return new Pages(snapshot.getVersion(), new ByteBuffer[] { NO_USERS });
+		}
+
+		List<ByteArrayOutputStream> pages = new ArrayList<>();
+		ByteArrayOutputStream page = new ByteArrayOutputStream(pageSize);
+		pages.add(page);
+		for (Session session : sessions) {
+			byte[] entry = ("* " + session.getName() + "\n").getBytes(StandardCharsets.UTF_8);
+			if (page.size() > 0 && page.size() + entry.length > pageSize - TRAILER_RESERVE) {
+				page = new ByteArrayOutputStream(pageSize);
+				pages.add(page);
+			}
+			page.write(entry, 0, entry.length);
+		}
+
+		ByteBuffer[] encoded = new ByteBuffer[pages.size()];
+		for (int i = 0; i < encoded.length; i++) {
+			if (i < encoded.length - 1) {
+				byte[] more = (MORE + " " + snapshot.getVersion() + " " + (i + 1) + "\n")
+						.getBytes(StandardCharsets.UTF_8);
+				pages.get(i).write(more, 0, more.length);
+			}
+			encoded[i] = direct(pages.get(i).toByteArray());
+		}
+		return new Pages(snapshot.getVersion(), encoded);
+	}
+
+	private static ByteBuffer direct(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer.asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,103 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the messages written to a single connection into one continuous
+ * deflate stream.
+ * <p/>
+ * The writer of a connection adds every message of a batch and flushes the
+ * stream once per batch with {@link Deflater#SYNC_FLUSH}, so the client can
+ * inflate everything written so far without waiting for more data. The
+ * deflater is kept for the lifetime of the connection, so its dictionary
+ * spans all messages sent so far and repeated names and phrases compress to
+ * back references.
+ */
+class OutboundCompressor {
+
+	/**
+	 * Queued after the acknowledgement of the negotiation; the writer of the
+	 * connection compresses everything that follows this marker.
+	 */
+	static final ByteBuffer START = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private static final int INITIAL_OUTPUT_SIZE = 4096;
+
+	private final Deflater deflater;
+	private final Metrics metrics;
+	private ByteBuffer output = ByteBuffer.allocate(INITIAL_OUTPUT_SIZE);
+	private boolean flushed;
+	private long pending;
+
+	/**
+	 * @param level
+	 *            the compression level, 1 (fastest) to 9 (smallest)
+	 */
+	OutboundCompressor(int level, Metrics metrics) {
+		this.deflater = new Deflater(level);
+		this.metrics = metrics;
+		metrics.compressionStarted();
+	}
+
+	/**
+	 * Compresses the given message into the output. The position of the
+	 * message is left untouched.
+	 */
+	void add(ByteBuffer message) {
+		ByteBuffer input = message.duplicate();
+		pending += input.remaining();
+		deflater.setInput(input);
+		while (!deflater.needsInput()) {
+			ensureSpace();
+			deflater.deflate(output, Deflater.NO_FLUSH);
+		}
+	}
+
+	/**
+	 * @return whether messages have been added since the last flush
+	 */
+	boolean hasPending() {
+		return pending > 0;
+	}
+
+	/**
+	 * Flushes the deflate stream.
+	 *
+	 * @return the compressed bytes of all messages added since the last
+	 *         flush, reused once the next message is added
+	 */
+	ByteBuffer flush() {
+		// the deflater is done once it leaves space in the output
+		do {
+			ensureSpace();
+			deflater.deflate(output, Deflater.SYNC_FLUSH);
+		} while (!output.hasRemaining());
+		output.flip();
+		flushed = true;
+		metrics.compressed(pending, output.remaining());
+		pending = 0;
+		return output;
+	}
+
+	// reuses the output once it has been written, grows it once it is full
+	private void ensureSpace() {
+		if (flushed) {
+			output.clear();
+			flushed = false;
+		}
+		if (!output.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(output.capacity() * 2);
+			output.flip();
+			larger.put(output);
+			output = larger;
+		}
+	}
+
+	/**
+	 * Releases the native resources of the deflater.
+	 */
+	void end() {
+		deflater.end();
+	}
+}
@@ -0,0 +1,81 @@
+package chatserver;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import util.Config;
+
+/**
+ * Settings shared by all {@link OutboundQueue}s of a {@link Chatserver} and
+ * the counters of the overflow policies.
+ */
+class OutboundPolicy {
+
+	/**
+	 * What to do when a message is sent to a connection whose queue is full.
+	 */
+	enum Overflow {
+		/** discard the oldest queued message to make room */
+		DROP_OLDEST,
+		/** close the connection of the slow consumer */
+		DISCONNECT
+	}
+
+	private final int capacity;
+	private final int batchSize;
+	private final Overflow overflow;
+
+	private final LongAdder droppedMessages = new LongAdder();
+	private final LongAdder disconnectedConsumers = new LongAdder();
+
+	OutboundPolicy(int capacity, int batchSize, Overflow overflow) {
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Reads the keys {@code outbound.capacity}, {@code outbound.batch} and
+	 * {@code outbound.overflow} ({@code drop-oldest} or {@code disconnect}).
+	 */
+	static OutboundPolicy create(Config config) {
+		String overflow = config.getString("outbound.overflow", "drop-oldest").trim();
+		return new OutboundPolicy(config.getInt("outbound.capacity", 1024),
+				config.getInt("outbound.batch", 64),
+				overflow.equals("disconnect") ? Overflow.DISCONNECT : Overflow.DROP_OLDEST);
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	Overflow getOverflow() {
+		return overflow;
+	}
+
+	void messageDropped() {
+		droppedMessages.increment();
+	}
+
+	void consumerDisconnected() {
+		disconnectedConsumers.increment();
+	}
+
+	long getDroppedMessages() {
+		return droppedMessages.sum();
+	}
+
+	long getDisconnectedConsumers() {
+		return disconnectedConsumers.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("outbound queues: capacity %d, batch %d, overflow %s, dropped messages: %d, disconnected consumers: %d",
+				capacity, batchSize, overflow.name().toLowerCase().replace('_', '-'),
+				getDroppedMessages(), getDisconnectedConsumers());
+	}
+}
@@ -0,0 +1,131 @@
+package chatserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of encoded messages waiting to be written to a single
+ * connection.
+ * <p/>
+ * Senders only enqueue; the writer of the connection drains the queue in
+ * batches. If the queue is full, the {@link OutboundPolicy} decides whether
+ * the oldest message is dropped or the connection has to be closed.
+ */
+class OutboundQueue {
+
+	private final OutboundPolicy policy;
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private boolean closed;
+
+	OutboundQueue(OutboundPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Enqueues the given message.
+	 *
+	 * @param message
+	 *            the encoded message
+	 * @return {@code false} if the queue overflowed and the connection has to
+	 *         be disconnected, {@code true} otherwise
+	 */
+	boolean offer(ByteBuffer message) {
+		lock.lock();
+		try {
+			if (closed) {
+				return true;
+			}
+			if (queue.size() >= policy.getCapacity()) {
+				if (policy.getOverflow() == OutboundPolicy.Overflow.DISCONNECT) {
+					policy.consumerDisconnected();
+					return false;
+				}
+				queue.poll();
+				policy.messageDropped();
+			}
+			queue.add(message);
+			if (queue.size() == 1) {
+				notEmpty.signal();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to one batch of messages to the given collection without
+	 * blocking.
+	 *
+	 * @return the number of messages moved
+	 */
+	int drainTo(Collection<ByteBuffer> batch) {
+		lock.lock();
+		try {
+			return drain(batch);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves up to one batch of messages to the given collection, waiting until
+	 * at least one message is available or the queue is closed.
+	 *
+	 * @return the number of messages moved, {@code 0} once the queue is closed
+	 *         and empty
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	int awaitDrainTo(Collection<ByteBuffer> batch) throws InterruptedException {
+		lock.lock();
+		try {
+			while (queue.isEmpty() && !closed) {
+				notEmpty.await();
+			}
+			return drain(batch);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int drain(Collection<ByteBuffer> batch) {
+		int n = 0;
+		ByteBuffer message;
+		while (n < policy.getBatchSize() && (message = queue.poll()) != null) {
+			batch.add(message);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Rejects further messages. Messages already queued are still drained.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards all queued messages.
+	 */
+	void clear() {
+		lock.lock();
+		try {
+			queue.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
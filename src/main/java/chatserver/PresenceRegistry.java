@@ -0,0 +1,132 @@
+package chatserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps track of the users that are currently online.
+ * <p/>
+ * Logins and logouts update concurrent maps and then publish a new immutable,
+ * name ordered {@link Snapshot}. Readers such as the broadcast loop or the
+ * {@code !list} handler only read the current snapshot and never wait for a
+ * lock.
+ */
+class PresenceRegistry {
+
+	/**
+	 * An immutable view of all online users, sorted by name.
+	 */
+	static final class Snapshot {
+
+		private final long version;
+		private final Session[] sessions;
+
+		Snapshot(long version, Session[] sessions) {
+			this.version = version;
+			this.sessions = sessions;
+		}
+
+		/**
+		 * @return increases with every change of the online users
+		 */
+		long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the online sessions sorted by name, must not be modified
+		 */
+		Session[] getSessions() {
+			return sessions;
+		}
+
+		int size() {
+			return sessions.length;
+		}
+	}
+
+	private static final Session[] EMPTY = new Session[0];
+
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<String, Session> sorted = new ConcurrentSkipListMap<>();
+	private final AtomicLong version = new AtomicLong();
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(
+			new Snapshot(0, EMPTY));
+
+	/**
+	 * Reserves the name of the given session. The user counts as online from
+	 * now on, but the session is not part of any snapshot before it is
+	 * {@link #activate(Session) activated}. This gives the caller a chance to
+	 * confirm the login before the first broadcast reaches the session.
+	 *
+	 * @return {@code false} if the user is already online
+	 */
+	boolean reserve(Session session) {
+		return sessions.putIfAbsent(session.getName(), session) == null;
+	}
+
+	/**
+	 * Publishes a reserved session to the snapshots.
+	 */
+	void activate(Session session) {
+		if (sessions.get(session.getName()) == session) {
+			sorted.put(session.getName(), session);
+			publish();
+		}
+	}
+
+	/**
+	 * Removes the given session if it is still the registered one.
+	 */
+	void logout(Session session) {
+		if (sessions.remove(session.getName(), session)) {
+			sorted.remove(session.getName(), session);
+			publish();
+		}
+	}
+
+	boolean isOnline(String name) {
+		return sessions.containsKey(name);
+	}
+
+	Session get(String name) {
+		return sessions.get(name);
+	}
+
+	/**
+	 * @return the session of the given user if it has been activated, or
+	 *         {@code null}
+	 */
+	Session getActive(String name) {
+		return sorted.get(name);
+	}
+
+	/**
+	 * @return the current snapshot of all online users
+	 */
+	Snapshot snapshot() {
+		return snapshot.get();
+	}
+
+	/*
+	 * Every change is applied to the maps before the version is incremented,
+	 * so a snapshot taken with a higher version contains all changes of the
+	 * lower ones. Concurrent publishers only install snapshots newer than the
+	 * current one.
+	 */
+	private void publish() {
+		long v = version.incrementAndGet();
+		Session[] copy = sorted.values().toArray(EMPTY);
+		Snapshot next = new Snapshot(v, copy);
+		Snapshot current;
+		do {
+			current = snapshot.get();
+			if (current.version >= v) {
+				return;
+			}
+		} while (!snapshot.compareAndSet(current, next));
+	}
+}
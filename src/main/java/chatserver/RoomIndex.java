@@ -0,0 +1,148 @@
+package chatserver;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the chat rooms and their members, so that a message sent to a room
+ * only touches the sessions of its members.
+ * <p/>
+ * Every room keeps its members in an array that is copied on every join and
+ * leave. Senders iterate the current array without any lock; joins and leaves
+ * are rare compared to messages. Empty rooms are removed.
+ * <p/>
+ * The default room {@value #DEFAULT_ROOM}, which {@code !send} writes to, is
+ * not kept here: all online users are its members, so it is served from the
+ * snapshots of the {@link PresenceRegistry}.
+ */
+class RoomIndex {
+
+	/**
+	 * The room every online user is a member of.
+	 */
+	static final String DEFAULT_ROOM = "all";
+
+	static final int MAX_NAME_LENGTH = 64;
+
+	private static final Session[] EMPTY = new Session[0];
+
+	// A single room, replaced by a new one once it has been emptied and removed
+	private static final class Room {
+		volatile Session[] members = EMPTY;
+		boolean removed;
+	}
+
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+	/**
+	 * @return whether the given name can be used for a room other than the
+	 *         default room
+	 */
+	static boolean isValidName(String room) {
+		if (room.isEmpty() || room.length() > MAX_NAME_LENGTH || room.equals(DEFAULT_ROOM)) {
+			return false;
+		}
+		for (int i = 0; i < room.length(); i++) {
+			if (Character.isWhitespace(room.charAt(i)) || Character.isISOControl(room.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the given session to the given room, creating the room if
+	 * necessary.
+	 *
+	 * @return {@code false} if the session already is a member
+	 */
+	boolean join(String room, Session session) {
+		while (true) {
+			Room r = rooms.get(room);
+			if (r == null) {
+				r = new Room();
+				Room existing = rooms.putIfAbsent(room, r);
+				if (existing != null) {
+					r = existing;
+				}
+			}
+			synchronized (r) {
+				if (r.removed) {
+					// emptied in the meantime, start a new room
+					continue;
+				}
+				Session[] members = r.members;
+				for (Session member : members) {
+					if (member == session) {
+						return false;
+					}
+				}
+				Session[] copy = Arrays.copyOf(members, members.length + 1);
+				copy[members.length] = session;
+				r.members = copy;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Removes the given session from the given room. The room is removed once
+	 * it is empty.
+	 *
+	 * @return {@code false} if the session is not a member
+	 */
+	boolean leave(String room, Session session) {
+		Room r = rooms.get(room);
+		if (r == null) {
+			return false;
+		}
+		synchronized (r) {
+			Session[] members = r.members;
+			for (int i = 0; i < members.length; i++) {
+				if (members[i] == session) {
+					if (members.length == 1) {
+						r.members = EMPTY;
+						r.removed = true;
+						rooms.remove(room, r);
+					} else {
+						Session[] copy = new Session[members.length - 1];
+						System.arraycopy(members, 0, copy, 0, i);
+						System.arraycopy(members, i + 1, copy, i, copy.length - i);
+						r.members = copy;
+					}
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return the current members of the given room, must not be modified
+	 */
+	Session[] members(String room) {
+		Room r = rooms.get(room);
+		return r == null ? EMPTY : r.members;
+	}
+
+	/**
+	 * @return whether the given session is a member of the given room
+	 */
+	boolean isMember(String room, Session session) {
+		for (Session member : members(room)) {
+			if (member == session) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		long memberships = 0;
+		for (Room room : rooms.values()) {
+			memberships += room.members.length;
+		}
+		return String.format("rooms: %d rooms, %d members", rooms.size(), memberships);
+	}
+}
@@ -0,0 +1,47 @@
+package chatserver;
+
+/**
+ * A logged in user and the connection the user is served on.
+ */
+class Session {
+
+	private final String name;
+	private final ClientConnection connection;
+	private final String node;
+	private final long loginTime = System.currentTimeMillis();
+
+	Session(String name, ClientConnection connection) {
+		this(name, connection, null);
+	}
+
+	/**
+	 * @param node
+	 *            the cluster node the user is logged in at, {@code null} for
+	 *            users of this server
+	 */
+	Session(String name, ClientConnection connection, String node) {
+		this.name = name;
+		this.connection = connection;
+		this.node = node;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	ClientConnection getConnection() {
+		return connection;
+	}
+
+	/**
+	 * @return the cluster node the user is logged in at, or {@code null} if the
+	 *         user is connected to this server
+	 */
+	String getNode() {
+		return node;
+	}
+
+	long getLoginTime() {
+		return loginTime;
+	}
+}
@@ -0,0 +1,391 @@
+package chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Selector based TCP front end of the {@link Chatserver}.
+ * <p/>
+ * One acceptor thread hands accepted connections round robin to a fixed number
+ * of event loops. Each event loop multiplexes its connections with its own
+ * {@link Selector} and passes the incoming bytes to the {@link InboundDecoder}
+ * of the connection. Lines sent to a connection are put into
+ * its {@link OutboundQueue} and written in batches by the event loop as soon as
+ * the channel is writable.
+ */
+class TCPReactor implements Runnable {
+
+	/**
+	 * Creates the {@link LineHandler} for a newly accepted connection.
+	 */
+	interface HandlerFactory {
+		LineHandler create(ClientConnection connection);
+	}
+
+	private final ServerSocketChannel serverChannel;
+	private final HandlerFactory factory;
+	private final OutboundPolicy policy;
+	private final Metrics metrics;
+	private final EventLoop[] loops;
+	private int nextLoop;
+
+	/**
+	 * @param serverChannel
+	 *            the bound server channel to accept connections from
+	 * @param threads
+	 *            the number of event loops
+	 * @param factory
+	 *            creates the handler of each accepted connection
+	 * @param policy
+	 *            the settings of the outbound queues
+	 * @param metrics
+	 *            counts the bytes read and written
+	 * @throws IOException
+	 *             if a selector cannot be opened
+	 */
+	public TCPReactor(ServerSocketChannel serverChannel, int threads,
+			HandlerFactory factory, OutboundPolicy policy, Metrics metrics) throws IOException {
+		this.serverChannel = serverChannel;
+		this.factory = factory;
+		this.policy = policy;
+		this.metrics = metrics;
+		this.loops = new EventLoop[Math.max(1, threads)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(Selector.open());
+		}
+	}
+
+	/**
+	 * Opens a server channel bound to the given port.
+	 */
+	public static ServerSocketChannel open(int port) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		return channel;
+	}
+
+	/**
+	 * Starts the event loops on the given executor. The calling thread of
+	 * {@link #run()} then acts as acceptor.
+	 */
+	public void start(ExecutorService executor) {
+		for (EventLoop loop : loops) {
+			executor.execute(loop);
+		}
+		executor.execute(this);
+	}
+
+	// accepts new connections until the server channel is closed
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				SocketChannel channel = serverChannel.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				loops[nextLoop].register(channel);
+				nextLoop = (nextLoop + 1) % loops.length;
+			}
+		} catch (IOException e) {
+			// server channel closed
+		}
+	}
+
+	/**
+	 * Closes the server channel and all connections.
+	 */
+	public void close() {
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		for (EventLoop loop : loops) {
+			loop.shutdown();
+		}
+	}
+
+	// Thread serving the connections registered with one selector
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+		private final Queue<Connection> flushes = new ConcurrentLinkedQueue<>();
+		private volatile boolean running = true;
+
+		EventLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		void register(SocketChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+		}
+
+		void requestFlush(Connection connection) {
+			if (connection.flushScheduled.compareAndSet(false, true)) {
+				flushes.add(connection);
+				selector.wakeup();
+			}
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					processRegistrations();
+					processFlushes();
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection connection = (Connection) key.attachment();
+						if (!key.isValid()) {
+							connection.closeNow();
+							continue;
+						}
+						try {
+							if (key.isReadable()) {
+								connection.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						} catch (RuntimeException e) {
+							// never let a single connection take down the loop
+							connection.closeNow();
+						}
+					}
+				}
+			} catch (IOException e) {
+				// selector failed, fall through and release everything
+			}
+
+			for (SelectionKey key : selector.keys()) {
+				((Connection) key.attachment()).closeNow();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+		}
+
+		private void processRegistrations() {
+			SocketChannel channel;
+			while ((channel = registrations.poll()) != null) {
+				Connection connection = new Connection(this, channel,
+						new OutboundQueue(policy), metrics);
+				try {
+					connection.key = channel.register(selector,
+							SelectionKey.OP_READ, connection);
+				} catch (ClosedChannelException e) {
+					continue;
+				}
+				connection.handler = factory.create(connection);
+				connection.decoder = new InboundDecoder(connection, connection.handler);
+			}
+		}
+
+		private void processFlushes() {
+			Connection connection;
+			while ((connection = flushes.poll()) != null) {
+				connection.flush();
+			}
+		}
+	}
+
+	// A single non-blocking client connection owned by one event loop
+	private static class Connection implements ClientConnection {
+
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final String hostAddress;
+		private final OutboundQueue queue;
+		private final Metrics metrics;
+		private final AtomicBoolean flushScheduled = new AtomicBoolean();
+		// messages taken from the queue but not yet completely written
+		private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+		private final ArrayList<ByteBuffer> batch = new ArrayList<>();
+		// set before the start marker is queued, read after taking it
+		private int compressionLevel;
+		private OutboundCompressor compressor;
+		private SelectionKey key;
+		private LineHandler handler;
+		private InboundDecoder decoder;
+		private volatile boolean closing;
+		private volatile boolean disconnect;
+		private boolean closed;
+
+		Connection(EventLoop loop, SocketChannel channel, OutboundQueue queue, Metrics metrics) {
+			this.loop = loop;
+			this.channel = channel;
+			this.queue = queue;
+			this.metrics = metrics;
+			this.hostAddress = channel.socket().getInetAddress().getHostAddress();
+		}
+
+		@Override
+		public void sendLine(String line) {
+			send(CHARSET.encode(line + "\n"));
+		}
+
+		@Override
+		public void send(ByteBuffer message) {
+			if (closing) {
+				return;
+			}
+			if (!queue.offer(message.duplicate())) {
+				// slow consumer, drop the connection without flushing
+				disconnect = true;
+				closing = true;
+			}
+			loop.requestFlush(this);
+		}
+
+		@Override
+		public void startCompression(String line, int level) {
+			sendLine(line);
+			compressionLevel = level;
+			if (!closing && !queue.offer(OutboundCompressor.START)) {
+				disconnect = true;
+				closing = true;
+			}
+			loop.requestFlush(this);
+		}
+
+		@Override
+		public void close() {
+			closing = true;
+			queue.close();
+			loop.requestFlush(this);
+		}
+
+		@Override
+		public String getHostAddress() {
+			return hostAddress;
+		}
+
+		// called by the event loop only
+		void read() {
+			int read;
+			try {
+				read = channel.read(decoder.buffer());
+			} catch (IOException e) {
+				read = -1;
+			}
+			if (read < 0) {
+				closeNow();
+				return;
+			}
+			metrics.bytesRead(read);
+
+			if (closing) {
+				// the connection is about to be closed, ignore the rest
+				decoder.buffer().clear();
+			} else if (!decoder.decode()) {
+				close();
+			}
+		}
+
+		// called by the event loop only
+		void flush() {
+			flushScheduled.set(false);
+			if (closed) {
+				return;
+			}
+			if (disconnect) {
+				closeNow();
+				return;
+			}
+			try {
+				while (!inFlight.isEmpty() || take()) {
+					metrics.bytesWritten(channel.write(inFlight.toArray(new ByteBuffer[inFlight.size()])));
+					while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) {
+						inFlight.poll();
+					}
+					if (!inFlight.isEmpty()) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				closeNow();
+				return;
+			}
+			if (closing) {
+				closeNow();
+			}
+		}
+
+		// moves the next batch to the messages in flight, compressed once
+		// negotiated; the compressor reuses its output, so only called once
+		// everything in flight has been written
+		private boolean take() {
+			if (queue.drainTo(batch) == 0) {
+				return false;
+			}
+			for (ByteBuffer buffer : batch) {
+				if (buffer == OutboundCompressor.START) {
+					compressor = new OutboundCompressor(compressionLevel, metrics);
+				} else if (compressor != null) {
+					compressor.add(buffer);
+				} else {
+					inFlight.add(buffer);
+				}
+			}
+			batch.clear();
+			if (compressor != null && compressor.hasPending()) {
+				inFlight.add(compressor.flush());
+			}
+			return true;
+		}
+
+		// called by the event loop only
+		void closeNow() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			closing = true;
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing left to release
+			}
+			queue.close();
+			queue.clear();
+			inFlight.clear();
+			if (compressor != null) {
+				compressor.end();
+			}
+			if (handler != null) {
+				handler.onClose();
+			}
+		}
+	}
+}
@@ -4,6 +4,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.net.DatagramPacket;
@@ -14,26 +16,30 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.TreeMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import cli.Command;
 import cli.Shell;
 import util.Config;
+import util.Frames;
+import util.MeteredExecutor;
 
 //Tom Tucek, 1325775
 
 public class Client implements IClientCli, Runnable {
 
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+
 	private String componentName;
-	@SuppressWarnings("unused")
 	private Config config;
 	private InputStream userRequestStream;
 	private PrintStream userResponseStream;
 
-	private ExecutorService threadPool;
+	private MeteredExecutor threadPool;
 	private Shell shell;
 	
 	private String host;
@@ -46,7 +52,10 @@ public class Client implements IClientCli, Runnable {
 	private ServerSocket serverSocket;
 	
 	private PrintWriter out;
+	private OutputStream rawOut;
 	private BufferedReader in;
+	// whether commands are sent as binary frames instead of text lines
+	private boolean binary;
 	
 	// Key = username, Value = IP:port
 	private Map<String, String> usersLookupd;
@@ -73,12 +82,13 @@ public class Client implements IClientCli, Runnable {
 		this.lastReceivedMessage = null;
 		this.in = null;
 		this.out = null;
+		this.rawOut = null;
 		
 		this.serverSocket = null;
 		
 		this.usersLookupd = new TreeMap<String, String>();
 
-		threadPool = Executors.newCachedThreadPool();
+		threadPool = MeteredExecutor.create(config);
 		
 		host = config.getString("chatserver.host");
 		udpPort = Integer.valueOf(config.getString("chatserver.udp.port"));
@@ -108,16 +118,40 @@ public class Client implements IClientCli, Runnable {
 		
 		try {		
 			socket = new Socket(host, tcpPort);
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-				
-			out.println("!login " + username + " " + password);
+			rawOut = socket.getOutputStream();
+			out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			
+			if(config.getString("compression", "none").equals("deflate"))
+			{
+				out.println(Frames.COMPRESS);
+				String ack = in.readLine();
+				// the server sends nothing else before the next command, so nothing is buffered yet
+				if(Frames.COMPRESS.equals(ack))
+					in = new BufferedReader(new InputStreamReader(
+							new InflaterInputStream(socket.getInputStream(), new Inflater()), StandardCharsets.UTF_8));
+				else
+					writeToShell("Server does not support compression, using plain replies.");
+			}
+			
+			binary = false;
+			if(config.getString("protocol", "text").equals("binary"))
+			{
+				out.println(Frames.NEGOTIATE);
+				String ack = in.readLine();
+				if(Frames.NEGOTIATE.equals(ack))
+					binary = true;
+				else
+					writeToShell("Server does not support the binary protocol, using text.");
+			}
+			
+			sendCommand(Frames.LOGIN, "!login ", username + " " + password);
 			
 			String input = in.readLine();
 
 			writeToShell(input);
 				
-			if(input.equals("Successfully logged in."))
+			if(input != null && input.equals("Successfully logged in."))
 			{
 				// Login successful
 				this.activeTcpSocket = socket;
@@ -159,10 +193,8 @@ public class Client implements IClientCli, Runnable {
 		//String input = null;
 		//try
 		//{
-			synchronized (out) {
-				out.println("!logout");
-		//		input = in.readLine();
-			}
+			sendCommand(Frames.LOGOUT, "!logout", "");
+		//	input = in.readLine();
 		//}
 		//catch(IOException ie)
 		//{
@@ -176,6 +208,7 @@ public class Client implements IClientCli, Runnable {
 		this.activeTcpSocket = null;
 		this.in = null;
 		this.out = null;
+		this.rawOut = null;
 
 		if(serverSocket != null)
 		{
@@ -200,9 +233,7 @@ public class Client implements IClientCli, Runnable {
 			return "ERROR: Not logged in. Unable to send messages or commands.";
 		}
 		
-		synchronized (out) {
-			this.out.println("!send " + message);
-		}
+		sendCommand(Frames.SEND, "!send ", message);
 		
 		return null;
 	}
@@ -234,7 +265,11 @@ public class Client implements IClientCli, Runnable {
 			ipp = lookup(username);
 			
 			if(ipp == null)
+			{
+				// no private address, let the server forward or store the message
+				sendCommand(Frames.RELAY, "!relay ", username + " " + message);
 				return null;
+			}
 		}
 
 		Socket socket = null;
@@ -267,6 +302,8 @@ public class Client implements IClientCli, Runnable {
 
 			writeToShell("ERROR: Connection error to client: [" + username + "]. Closing connection.");
 			
+			// the private address is not reachable, let the server forward or store the message
+			sendCommand(Frames.RELAY, "!relay ", username + " " + message);
 		}
 		
 		if(socket != null)
@@ -284,9 +321,7 @@ public class Client implements IClientCli, Runnable {
 			return "ERROR: Not logged in. Unable to send messages or commands.";
 		}
 
-		synchronized (out) {
-			this.out.println("!lookup " + username);
-		}
+		sendCommand(Frames.LOOKUP, "!lookup ", username);
 		
 		int timeout = 3000;
 
@@ -320,9 +355,7 @@ public class Client implements IClientCli, Runnable {
 			return "ERROR: Illegal format for command !register. Please use <IP:Port>.";
 		}
 		
-		synchronized (out) {
-			out.println("!register " + privateAddress);
-		}
+		sendCommand(Frames.REGISTER, "!register ", privateAddress);
 
 		if(serverSocket != null)
 		{
@@ -342,6 +375,98 @@ public class Client implements IClientCli, Runnable {
 		return null;
 	}
 
+	/**
+	 * Requests the last public messages from the server, which are then
+	 * printed as server messages.
+	 *
+	 * @param count
+	 *            the number of messages
+	 */
+	@Command
+	public String history(int count) throws IOException {
+
+		if(this.activeTcpSocket == null)
+		{
+			return "ERROR: Not logged in. Unable to send messages or commands.";
+		}
+		
+		sendCommand(Frames.HISTORY, "!history ", String.valueOf(count));
+		
+		return null;
+	}
+
+	/**
+	 * Joins the given room, whose messages are then printed like public
+	 * messages.
+	 *
+	 * @param room
+	 *            the name of the room, created by its first member
+	 */
+	@Command
+	public String join(String room) throws IOException {
+
+		if(this.activeTcpSocket == null)
+		{
+			return "ERROR: Not logged in. Unable to send messages or commands.";
+		}
+		
+		sendCommand(Frames.JOIN, "!join ", room);
+		
+		return null;
+	}
+
+	/**
+	 * Leaves the given room.
+	 *
+	 * @param room
+	 *            the name of the room
+	 */
+	@Command
+	public String leave(String room) throws IOException {
+
+		if(this.activeTcpSocket == null)
+		{
+			return "ERROR: Not logged in. Unable to send messages or commands.";
+		}
+		
+		sendCommand(Frames.LEAVE, "!leave ", room);
+		
+		return null;
+	}
+
+	/**
+	 * Sends a message to the other members of the given room. The room
+	 * {@code all} reaches every online user, like {@code !send}.
+	 *
+	 * @param room
+	 *            the name of a room the user has joined
+	 * @param message
+	 *            the message
+	 */
+	@Command
+	public String sendto(String room, String message) throws IOException {
+
+		if(this.activeTcpSocket == null)
+		{
+			return "ERROR: Not logged in. Unable to send messages or commands.";
+		}
+		
+		sendCommand(Frames.SENDTO, "!sendto ", room + " " + message);
+		
+		return null;
+	}
+
+	// sends a command to the server, as a frame once the binary protocol has been negotiated
+	private void sendCommand(byte opcode, String command, String argument) throws IOException
+	{
+		synchronized (out) {
+			if(binary)
+				Frames.write(rawOut, opcode, argument);
+			else
+				out.println(command + argument);
+		}
+	}
+
 	@Command
 	@Override
 	public String lastMsg() throws IOException {
@@ -353,6 +478,17 @@ public class Client implements IClientCli, Runnable {
 		
 	}
 
+	/**
+	 * Prints the metrics of the thread pool that runs the listener and UDP
+	 * tasks of this client.
+	 *
+	 * @return the pool metrics
+	 */
+	@Command
+	public String pool() throws IOException {
+		return threadPool.toString();
+	}
+
 	@Command
 	@Override
 	public String exit() throws IOException {
@@ -499,7 +635,6 @@ public class Client implements IClientCli, Runnable {
 			}
 			
 			InetAddress address;
-			byte[] buf = msg.getBytes(); //new byte[256];
 			
 			try {
 				 address = InetAddress.getByName(host);
@@ -511,20 +646,6 @@ public class Client implements IClientCli, Runnable {
 				return;				
 			}
 			
-			DatagramPacket packet = new DatagramPacket(buf, buf.length, address, udpPort);
-			
-			try {
-				socket.send(packet);
-			} catch (IOException e) {
-
-				writeToShell("Error sending UDP packet to host [" + host + "]. Aborting UDP operation.");
-
-				socket.close();
-				return;	
-			}
-			
-			buf = new byte[256];
-			packet = new DatagramPacket(buf, buf.length);
 			try {
 				socket.setSoTimeout(5000);
 			} catch (SocketException e1) {
@@ -532,25 +653,70 @@ public class Client implements IClientCli, Runnable {
 				writeToShell("Error seting UDP socket timeout to 5 seconds.");
 			}
 			
-			try {
-				socket.receive(packet);
-			}  catch (SocketTimeoutException te) {
+			// answers may be split into several pages, each but the last ending with "!more <version> <page>"
+			StringBuilder result = new StringBuilder();
+			String request = msg;
+			byte[] buf = new byte[MAX_DATAGRAM_SIZE];
+			int restarts = 0;
+			
+			while(request != null)
+			{
+				byte[] out = request.getBytes(StandardCharsets.UTF_8);
+				DatagramPacket packet = new DatagramPacket(out, out.length, address, udpPort);
+				
+				try {
+					socket.send(packet);
+				} catch (IOException e) {
 
-				writeToShell("Error receiving UDP packet from host [" + host + "]. "
-							+ "Host did not respond in time (5s). Aborting UDP operation.");
+					writeToShell("Error sending UDP packet to host [" + host + "]. Aborting UDP operation.");
 
-				socket.close();
-				return;	
-			}
-			catch (IOException e) {
+					socket.close();
+					return;	
+				}
+				
+				packet = new DatagramPacket(buf, buf.length);
+				
+				try {
+					socket.receive(packet);
+				}  catch (SocketTimeoutException te) {
 
-				writeToShell("Error receiving UDP packet from host [" + host + "]. Aborting UDP operation.");
+					writeToShell("Error receiving UDP packet from host [" + host + "]. "
+								+ "Host did not respond in time (5s). Aborting UDP operation.");
 
-				socket.close();
-				return;	
+					socket.close();
+					return;	
+				}
+				catch (IOException e) {
+
+					writeToShell("Error receiving UDP packet from host [" + host + "]. Aborting UDP operation.");
+
+					socket.close();
+					return;	
+				}
+				
+				String page = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+				int more = page.lastIndexOf("!more ");
+				request = null;
+				
+				if(page.equals("!stale") && restarts++ < 3)
+				{
+					// list changed while paging, start over
+					result.setLength(0);
+					request = msg;
+				}
+				else if(more >= 0)
+				{
+					String[] trailer = page.substring(more).trim().split(" ");
+					result.append(page, 0, more);
+					request = msg + " " + trailer[1] + " " + trailer[2];
+				}
+				else
+				{
+					result.append(page);
+				}
 			}
 						
-			writeToShell(new String(packet.getData(), 0, packet.getLength()));
+			writeToShell(result.toString());
 			
 			socket.close();	
 		}
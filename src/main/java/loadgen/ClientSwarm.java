@@ -0,0 +1,422 @@
+package loadgen;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Config;
+import util.Frames;
+import util.LatencyHistogram;
+
+/**
+ * Simulates a swarm of chat clients against a chatserver and reports
+ * throughput and end-to-end latencies.
+ * <p/>
+ * The swarm writes the credentials of its users to {@code users.file}; a
+ * chatserver started with the same {@code users.file} picks them up, also
+ * while it is running. The users log in at {@code login.rate} per second and
+ * then each sends {@code user.rate} commands per second, picked at random
+ * according to the {@code mix.*} weights:
+ * <ul>
+ * <li>send: a public message, its latency is measured from sending until each
+ * of the other users has received it,</li>
+ * <li>lookup: the address of a random user,</li>
+ * <li>register: a private address on loopback,</li>
+ * <li>msg: a private message to a random user, relayed by the server; the
+ * users do not listen on their registered addresses,</li>
+ * <li>list: a UDP {@code !list}, measured until the first page arrives.</li>
+ * </ul>
+ * The latency of lookup, register and msg is measured until the reply of the
+ * server. Commands are sent with the wire protocol of the client, as text
+ * lines or as {@link Frames}.
+ * <p/>
+ * Usage: {@code ClientSwarm [users] [seconds]}, overriding {@code users} and
+ * {@code duration} of {@code loadgen.properties}. Host and ports are taken from
+ * {@code client.properties}.
+ */
+public class ClientSwarm {
+
+	private static final String[] COMMANDS = { "send", "lookup", "register", "msg", "list" };
+	private static final String FILLER = "anyone up for lunch at the usual place?";
+
+	private final Config config;
+	private final String host;
+	private final int tcpPort;
+	private final InetSocketAddress udpServer;
+	private final int users;
+	private final String prefix;
+	private final String password;
+	private final boolean binary;
+	private final int[] mix = new int[COMMANDS.length];
+	private int mixTotal;
+
+	private final AtomicBoolean running = new AtomicBoolean(true);
+	private final List<User> online = new CopyOnWriteArrayList<>();
+	private final AtomicLong commands = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong failedLogins = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	private final LatencyHistogram loginLatency = new LatencyHistogram();
+	private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+
+	private ScheduledExecutorService scheduler;
+	private ExecutorService readers;
+
+	/**
+	 * @param config
+	 *            the configuration of the swarm, see {@code loadgen.properties}
+	 * @param clientConfig
+	 *            the configuration of the client, for host and ports of the
+	 *            chatserver
+	 */
+	public ClientSwarm(Config config, Config clientConfig) {
+		this.config = config;
+		this.host = clientConfig.getString("chatserver.host");
+		this.tcpPort = clientConfig.getInt("chatserver.tcp.port");
+		this.udpServer = new InetSocketAddress(host, clientConfig.getInt("chatserver.udp.port"));
+		this.users = config.getInt("users");
+		this.prefix = config.getString("user.prefix", "swarm");
+		this.password = config.getString("user.password", "swarm");
+		this.binary = config.getString("protocol", "text").equals("binary");
+		for (int i = 0; i < COMMANDS.length; i++) {
+			mix[i] = Math.max(config.getInt("mix." + COMMANDS[i], 0), 0);
+			mixTotal += mix[i];
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Writes the credentials of all simulated users, unless the file already
+	 * holds exactly these.
+	 *
+	 * @return {@code true} if the file was written
+	 */
+	boolean writeCredentials(Path file) throws IOException {
+		StringBuilder properties = new StringBuilder();
+		for (int i = 0; i < users; i++) {
+			properties.append(prefix).append(i).append(".password = ").append(password).append('\n');
+		}
+		byte[] content = properties.toString().getBytes(StandardCharsets.ISO_8859_1);
+		if (Files.exists(file) && Arrays.equals(Files.readAllBytes(file), content)) {
+			return false;
+		}
+		if (file.toAbsolutePath().getParent() != null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+		}
+		// replace the file at once, so that a watching chatserver never reads half of it
+		Path tmp = Paths.get(file + ".tmp");
+		Files.write(tmp, content);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	/**
+	 * Logs in the users, drives the load for the given number of seconds and
+	 * prints the results.
+	 */
+	public void run(int seconds) throws InterruptedException {
+		scheduler = Executors.newScheduledThreadPool(config.getInt("threads", 8));
+		readers = Executors.newCachedThreadPool();
+		final double loginRate = Math.max(config.getInt("login.rate", 50), 1);
+		final long period = TimeUnit.SECONDS.toNanos(1) / Math.max(config.getInt("user.rate", 1), 1);
+
+		Thread ramp = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long start = System.nanoTime();
+				for (int i = 0; i < users && running.get(); i++) {
+					long due = start + (long) (i * TimeUnit.SECONDS.toNanos(1) / loginRate);
+					long wait = due - System.nanoTime();
+					if (wait > 0) {
+						try {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					final User user = new User(i);
+					if (user.login()) {
+						online.add(user);
+						readers.execute(user);
+						scheduler.scheduleAtFixedRate(new Runnable() {
+							@Override
+							public void run() {
+								user.command();
+							}
+						}, ThreadLocalRandom.current().nextLong(period), period, TimeUnit.NANOSECONDS);
+					}
+				}
+			}
+		}, "swarm-login");
+		ramp.start();
+
+		long lastCommands = 0, lastDelivered = 0;
+		for (int second = 1; second <= seconds; second++) {
+			Thread.sleep(1000);
+			long c = commands.get(), d = delivered.get();
+			System.out.printf("%3ds: %6d online %8d commands/s %8d deliveries/s %6d failed logins%n",
+					second, online.size(), c - lastCommands, d - lastDelivered, failedLogins.get());
+			lastCommands = c;
+			lastDelivered = d;
+		}
+
+		running.set(false);
+		ramp.interrupt();
+		ramp.join();
+		scheduler.shutdown();
+		scheduler.awaitTermination(5, TimeUnit.SECONDS);
+		for (User user : online) {
+			user.logout();
+		}
+		readers.shutdown();
+		readers.awaitTermination(5, TimeUnit.SECONDS);
+
+		System.out.printf("total: %d commands (%.0f/s), %d deliveries (%.0f/s), %d failed logins, "
+				+ "%d udp timeouts, %d errors%n",
+				commands.get(), commands.get() / (double) seconds,
+				delivered.get(), delivered.get() / (double) seconds,
+				failedLogins.get(), timeouts.get(), errors.get());
+		System.out.printf("latency %-9s %s%n", "login:", loginLatency);
+		for (int i = 0; i < COMMANDS.length; i++) {
+			System.out.printf("latency %-9s %s%n", COMMANDS[i] + ":", latencies[i]);
+		}
+		if (online.isEmpty() && failedLogins.get() > 0) {
+			System.out.println("No user could log in. Is the chatserver started with users.file="
+					+ config.getString("users.file") + "?");
+		}
+	}
+
+	// A reply of the server that has not arrived yet
+	private static final class Pending {
+		final LatencyHistogram histogram;
+		final long start;
+
+		Pending(LatencyHistogram histogram, long start) {
+			this.histogram = histogram;
+			this.start = start;
+		}
+	}
+
+	// A simulated client, reading everything the server sends to it
+	private class User implements Runnable {
+
+		private final int index;
+		private final String name;
+		// replies arrive in the order of the commands
+		private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+		private Socket socket;
+		private OutputStream rawOut;
+		private PrintWriter out;
+		private BufferedReader in;
+		private DatagramSocket udp;
+
+		User(int index) {
+			this.index = index;
+			this.name = prefix + index;
+		}
+
+		boolean login() {
+			long start = System.nanoTime();
+			try {
+				socket = new Socket(host, tcpPort);
+				rawOut = socket.getOutputStream();
+				out = new PrintWriter(new OutputStreamWriter(rawOut, StandardCharsets.UTF_8), true);
+				in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				if (binary) {
+					out.println(Frames.NEGOTIATE);
+					if (!Frames.NEGOTIATE.equals(in.readLine())) {
+						throw new IOException("binary protocol not supported");
+					}
+				}
+				sendCommand(Frames.LOGIN, "!login ", name + " " + password);
+				if ("Successfully logged in.".equals(in.readLine())) {
+					loginLatency.recordSince(start);
+					return true;
+				}
+			} catch (IOException e) {
+				errors.incrementAndGet();
+			}
+			failedLogins.incrementAndGet();
+			close();
+			return false;
+		}
+
+		// sends a single command, picked according to the mix
+		void command() {
+			if (!running.get() || socket.isClosed() || mixTotal == 0) {
+				return;
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int pick = random.nextInt(mixTotal);
+			int command = 0;
+			while (pick >= mix[command]) {
+				pick -= mix[command++];
+			}
+			String other = prefix + random.nextInt(users);
+			long start = System.nanoTime();
+			try {
+				switch (COMMANDS[command]) {
+				case "send":
+					sendCommand(Frames.SEND, "!send ", "t" + start + " " + FILLER);
+					break;
+				case "lookup":
+					expect(command, start, Frames.LOOKUP, "!lookup ", other);
+					break;
+				case "register":
+					expect(command, start, Frames.REGISTER, "!register ", "127.0.0.1:" + (20000 + index % 40000));
+					break;
+				case "msg":
+					expect(command, start, Frames.RELAY, "!relay ", other + " t" + start + " " + FILLER);
+					break;
+				case "list":
+					list(command, start);
+					break;
+				}
+				commands.incrementAndGet();
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				close();
+			}
+		}
+
+		// sends a command the server replies to
+		private void expect(int command, long start, byte opcode, String text, String argument) throws IOException {
+			synchronized (this) {
+				pending.add(new Pending(latencies[command], start));
+				sendCommand(opcode, text, argument);
+			}
+		}
+
+		private void sendCommand(byte opcode, String command, String argument) throws IOException {
+			synchronized (this) {
+				if (binary) {
+					Frames.write(rawOut, opcode, argument);
+				} else {
+					out.println(command + argument);
+					if (out.checkError()) {
+						throw new IOException("connection closed");
+					}
+				}
+			}
+		}
+
+		private void list(int command, long start) throws IOException {
+			if (udp == null) {
+				udp = new DatagramSocket();
+				udp.setSoTimeout(1000);
+			}
+			byte[] request = "!list".getBytes(StandardCharsets.US_ASCII);
+			byte[] buf = new byte[65507];
+			udp.send(new DatagramPacket(request, request.length, udpServer));
+			try {
+				udp.receive(new DatagramPacket(buf, buf.length));
+				latencies[command].recordSince(start);
+			} catch (SocketTimeoutException e) {
+				timeouts.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.startsWith("!lookup-result") || (line.startsWith("!sm ") && !line.startsWith("!sm [PM]"))) {
+						Pending reply = pending.poll();
+						if (reply != null) {
+							reply.histogram.recordSince(reply.start);
+						}
+					} else if (!line.startsWith("!")) {
+						// a public message: <sender>: t<nanos> <text>
+						int stamp = line.indexOf(": t");
+						int end = line.indexOf(' ', stamp + 3);
+						if (stamp > 0 && end > 0) {
+							try {
+								latencies[0].recordSince(Long.parseLong(line.substring(stamp + 3, end)));
+							} catch (NumberFormatException e) {
+								// not sent by the swarm
+							}
+						}
+						delivered.incrementAndGet();
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+			if (running.get()) {
+				errors.incrementAndGet();
+			}
+		}
+
+		void logout() {
+			try {
+				sendCommand(Frames.LOGOUT, "!logout", "");
+			} catch (IOException e) {
+				// closed anyway
+			}
+			close();
+		}
+
+		private void close() {
+			try {
+				if (socket != null) {
+					socket.close();
+				}
+			} catch (IOException e) {
+				// already closed
+			}
+			if (udp != null) {
+				udp.close();
+			}
+		}
+	}
+
+	/**
+	 * @param args
+	 *            users and seconds, both optional
+	 */
+	public static void main(String[] args) throws Exception {
+		Config config = new Config("loadgen");
+		if (args.length > 0) {
+			config.setProperty("users", Integer.parseInt(args[0]));
+		}
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : config.getInt("duration");
+
+		ClientSwarm swarm = new ClientSwarm(config, new Config("client"));
+		Path file = Paths.get(config.getString("users.file"));
+		if (swarm.writeCredentials(file)) {
+			System.out.printf("Wrote the credentials of %d users to %s%n", swarm.users, file);
+			// give a chatserver watching the file the chance to reload it
+			Thread.sleep(1000);
+		}
+		System.out.printf("Running %d users against %s:%d for %ds%n", swarm.users, swarm.host, swarm.tcpPort, seconds);
+		swarm.run(seconds);
+	}
+}
@@ -0,0 +1,124 @@
+package loadgen;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Config;
+
+/**
+ * Floods the UDP port of a chatserver with {@code !list} requests and reports
+ * how many answers per second come back.
+ * <p/>
+ * Usage: {@code UdpLoadGenerator [threads] [seconds] [window]}
+ * <ul>
+ * <li>threads: number of sending threads, each with its own socket (default 4)</li>
+ * <li>seconds: duration of the run (default 10)</li>
+ * <li>window: requests each thread sends before it waits for the answers
+ * (default 8)</li>
+ * </ul>
+ * Host and port are taken from {@code client.properties}.
+ */
+public class UdpLoadGenerator {
+
+	private final InetSocketAddress server;
+	private final int threads;
+	private final int window;
+
+	private final AtomicBoolean running = new AtomicBoolean(true);
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong answered = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+
+	public UdpLoadGenerator(InetSocketAddress server, int threads, int window) {
+		this.server = server;
+		this.threads = threads;
+		this.window = window;
+	}
+
+	/**
+	 * Runs the load for the given number of seconds and prints the rates.
+	 */
+	public void run(int seconds) throws InterruptedException {
+		Thread[] senders = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			senders[i] = new Thread(new Sender(), "udp-load-" + i);
+			senders[i].start();
+		}
+
+		long lastSent = 0, lastAnswered = 0;
+		for (int second = 1; second <= seconds; second++) {
+			Thread.sleep(1000);
+			long s = sent.get(), a = answered.get();
+			System.out.printf("%3ds: %8d requests/s %8d answers/s %6d timeouts%n",
+					second, s - lastSent, a - lastAnswered, timeouts.get());
+			lastSent = s;
+			lastAnswered = a;
+		}
+
+		running.set(false);
+		for (Thread sender : senders) {
+			sender.join();
+		}
+		System.out.printf("total: %d requests, %d answers, %d timeouts, %.0f answers/s%n",
+				sent.get(), answered.get(), timeouts.get(),
+				answered.get() / (double) seconds);
+	}
+
+	// Sends windows of requests and waits for their answers
+	private class Sender implements Runnable {
+
+		@Override
+		public void run() {
+			byte[] request = "!list".getBytes(StandardCharsets.US_ASCII);
+			byte[] buf = new byte[65507];
+			DatagramPacket out = new DatagramPacket(request, request.length, server);
+			DatagramPacket in = new DatagramPacket(buf, buf.length);
+
+			try (DatagramSocket socket = new DatagramSocket()) {
+				socket.setSoTimeout(1000);
+				while (running.get()) {
+					for (int i = 0; i < window; i++) {
+						socket.send(out);
+					}
+					sent.addAndGet(window);
+					for (int i = 0; i < window; i++) {
+						try {
+							in.setLength(buf.length);
+							socket.receive(in);
+							answered.incrementAndGet();
+						} catch (SocketTimeoutException e) {
+							timeouts.incrementAndGet();
+							break;
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("Sender failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @param args
+	 *            threads, seconds and window, all optional
+	 */
+	public static void main(String[] args) throws Exception {
+		Config config = new Config("client");
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int window = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		InetSocketAddress server = new InetSocketAddress(
+				config.getString("chatserver.host"),
+				config.getInt("chatserver.udp.port"));
+		System.out.printf("Sending !list to %s with %d threads, window %d, for %ds%n",
+				server, threads, window, seconds);
+		new UdpLoadGenerator(server, threads, window).run(seconds);
+	}
+}
@@ -0,0 +1,105 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing of the commands a client sends to the chatserver.
+ * <p/>
+ * A client switches from the line based text protocol to frames by sending the
+ * line {@value #NEGOTIATE}, which the server acknowledges with the same line.
+ * From then on every command is sent as
+ *
+ * <pre>
+ * opcode (1 byte) | payload length (4 bytes, big endian) | UTF-8 payload
+ * </pre>
+ *
+ * so that payloads may contain line breaks. Replies of the server remain text
+ * lines.
+ */
+public final class Frames {
+
+	/**
+	 * The line that requests and acknowledges the binary protocol.
+	 */
+	public static final String NEGOTIATE = "!proto binary";
+
+	/**
+	 * The line that requests and acknowledges compressed replies: everything
+	 * the server sends after the acknowledgement is a zlib stream that is
+	 * flushed after every batch of replies.
+	 */
+	public static final String COMPRESS = "!compress deflate";
+
+	/**
+	 * The answer to {@value #COMPRESS} of a server that keeps sending plain
+	 * replies.
+	 */
+	public static final String UNCOMPRESSED = "!compress none";
+
+	public static final Charset CHARSET = StandardCharsets.UTF_8;
+
+	public static final int HEADER_LENGTH = 5;
+	public static final int MAX_FRAME_LENGTH = 64 * 1024;
+	public static final int MAX_PAYLOAD_LENGTH = MAX_FRAME_LENGTH - HEADER_LENGTH;
+
+	/** payload: {@code <username> <password>} */
+	public static final byte LOGIN = 1;
+	/** empty payload */
+	public static final byte LOGOUT = 2;
+	/** payload: the message */
+	public static final byte SEND = 3;
+	/** payload: {@code <IP:port>} */
+	public static final byte REGISTER = 4;
+	/** payload: the user name */
+	public static final byte LOOKUP = 5;
+	/** payload: the number of messages */
+	public static final byte HISTORY = 6;
+	/** payload: {@code <username> <message>} */
+	public static final byte RELAY = 7;
+	/** payload: the room */
+	public static final byte JOIN = 8;
+	/** payload: the room */
+	public static final byte LEAVE = 9;
+	/** payload: {@code <room> <message>} */
+	public static final byte SENDTO = 10;
+
+	private Frames() {
+	}
+
+	/**
+	 * Encodes a single frame.
+	 *
+	 * @param opcode
+	 *            the command
+	 * @param payload
+	 *            the argument of the command
+	 * @return the frame, ready to be written
+	 * @throws IllegalArgumentException
+	 *             if the payload exceeds {@link #MAX_PAYLOAD_LENGTH}
+	 */
+	public static ByteBuffer encode(byte opcode, String payload) {
+		byte[] bytes = payload.getBytes(CHARSET);
+		if (bytes.length > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("Payload too long: " + bytes.length + " bytes");
+		}
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + bytes.length);
+		frame.put(opcode).putInt(bytes.length).put(bytes).flip();
+		return frame;
+	}
+
+	/**
+	 * Writes a single frame to the given stream and flushes it.
+	 *
+	 * @throws IOException
+	 *             if the frame cannot be written
+	 */
+	public static void write(OutputStream out, byte opcode, String payload) throws IOException {
+		ByteBuffer frame = encode(opcode, payload);
+		out.write(frame.array(), 0, frame.limit());
+		out.flush();
+	}
+}
@@ -0,0 +1,144 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records latencies in a fixed set of logarithmic buckets, in the manner of an
+ * HDR histogram.
+ * <p/>
+ * Every power of two is split into 32 linear sub-buckets, so any recorded
+ * value is reported with an error of at most about 3%. Recording is lock-free
+ * and does not allocate; latencies above about 18 minutes are counted in the
+ * last bucket.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_MAGNITUDE = 40;
+	private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a single latency.
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		buckets.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// retry until no higher value has been recorded concurrently
+		}
+	}
+
+	/**
+	 * Records the time elapsed since the given start.
+	 *
+	 * @param startNanos
+	 *            the start as returned by {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude > MAX_MAGNITUDE) {
+			return BUCKETS - 1;
+		}
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS));
+		return (magnitude - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+	}
+
+	// the smallest value counted in the given bucket
+	private static long lowerBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+		return subBucket << (magnitude - SUB_BUCKET_BITS);
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the highest recorded latency in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of all recorded latencies in nanoseconds
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * Returns the latency below which the given fraction of all recorded
+	 * latencies lies.
+	 *
+	 * @param fraction
+	 *            between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return the upper bound of the bucket in nanoseconds, 0 if nothing has
+	 *         been recorded
+	 */
+	public long getPercentile(double fraction) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(upper, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return count, mean, p50, p99, p99.9 and max in microseconds
+	 */
+	@Override
+	public String toString() {
+		return String.format("count=%d mean=%.1fus p50=%dus p99=%dus p999=%dus max=%dus",
+				getCount(), getMean() / 1000, micros(getPercentile(0.5)),
+				micros(getPercentile(0.99)), micros(getPercentile(0.999)), micros(getMax()));
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+}
@@ -0,0 +1,201 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An {@link ExecutorService} that runs tasks according to a configurable
+ * strategy and keeps track of its active and queued tasks and of the threads
+ * it has created.
+ * <p/>
+ * Supported strategies:
+ * <ul>
+ * <li>{@code cached}: an unbounded cached thread pool (the default),</li>
+ * <li>{@code fixed}: a fixed number of platform threads,</li>
+ * <li>{@code virtual}: a new virtual thread per task. Falls back to
+ * {@code cached} if the running JVM does not provide virtual threads.</li>
+ * </ul>
+ */
+public final class MeteredExecutor extends AbstractExecutorService {
+
+	private final String strategy;
+	private final ExecutorService delegate;
+
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+
+	private MeteredExecutor(String strategy, int threads) {
+		ThreadFactory factory = null;
+		if (strategy.equals("virtual")) {
+			factory = virtualThreadFactory();
+			if (factory == null) {
+				strategy = "cached (virtual threads not available)";
+			}
+		}
+		this.strategy = strategy;
+
+		if (factory != null) {
+			this.delegate = newThreadPerTaskExecutor(new CountingThreadFactory(factory));
+		} else if (strategy.equals("fixed")) {
+			this.delegate = Executors.newFixedThreadPool(threads,
+					new CountingThreadFactory(Executors.defaultThreadFactory()));
+		} else {
+			this.delegate = Executors.newCachedThreadPool(
+					new CountingThreadFactory(Executors.defaultThreadFactory()));
+		}
+	}
+
+	/**
+	 * Creates an executor as configured by the keys {@code executor} (the
+	 * strategy) and {@code executor.threads} (the pool size of the
+	 * {@code fixed} strategy) of the given configuration.
+	 *
+	 * @param config
+	 *            the configuration to use
+	 * @return the executor
+	 */
+	public static MeteredExecutor create(Config config) {
+		return new MeteredExecutor(config.getString("executor", "cached").trim(),
+				config.getInt("executor.threads", 64));
+	}
+
+	/**
+	 * @return the strategy in use
+	 */
+	public String getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * @return the number of tasks currently running
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return the number of tasks submitted but not yet started
+	 */
+	public int getQueuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the number of tasks that have finished
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the number of threads created so far
+	 */
+	public long getCreatedThreadCount() {
+		return created.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("executor: %s, active: %d, queued: %d, created: %d, completed: %d",
+				strategy, getActiveCount(), getQueuedCount(),
+				getCreatedThreadCount(), getCompletedCount());
+	}
+
+	@Override
+	public void execute(final Runnable command) {
+		queued.incrementAndGet();
+		try {
+			delegate.execute(new Runnable() {
+				@Override
+				public void run() {
+					queued.decrementAndGet();
+					active.incrementAndGet();
+					try {
+						command.run();
+					} finally {
+						active.decrementAndGet();
+						completed.incrementAndGet();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			queued.decrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		delegate.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return delegate.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+
+	/*
+	 * Virtual threads are looked up reflectively so that the project still
+	 * compiles and runs on JVMs without them.
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class).invoke(null,
+					factory);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create virtual thread executor", e);
+		}
+	}
+
+	private class CountingThreadFactory implements ThreadFactory {
+
+		private final ThreadFactory factory;
+
+		CountingThreadFactory(ThreadFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			created.incrementAndGet();
+			return factory.newThread(r);
+		}
+	}
+}
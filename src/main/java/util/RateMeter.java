@@ -0,0 +1,56 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and reports how many of them happened during the last full
+ * second.
+ */
+public final class RateMeter {
+
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong currentSecond = new AtomicLong(now());
+	private final AtomicLong currentCount = new AtomicLong();
+	private volatile long lastSecond = -1;
+	private volatile long lastCount;
+
+	/**
+	 * Records the given number of events.
+	 *
+	 * @param n
+	 *            the number of events
+	 */
+	public void mark(long n) {
+		roll(now());
+		currentCount.addAndGet(n);
+		total.addAndGet(n);
+	}
+
+	/**
+	 * @return the number of events recorded during the last full second
+	 */
+	public long rate() {
+		long second = now();
+		roll(second);
+		return lastSecond == second - 1 ? lastCount : 0;
+	}
+
+	/**
+	 * @return the number of events recorded since creation
+	 */
+	public long total() {
+		return total.get();
+	}
+
+	private void roll(long second) {
+		long current = currentSecond.get();
+		if (current != second && currentSecond.compareAndSet(current, second)) {
+			lastCount = currentCount.getAndSet(0);
+			lastSecond = current;
+		}
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000000L;
+	}
+}
@@ -1,5 +1,10 @@
 package test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+
 import nameserver.INameserverCli;
 import nameserver.Nameserver;
 import util.Config;
@@ -31,7 +36,7 @@ public class ComponentFactory {
 		 * instance. Depending on your code you might want to modify the
 		 * following lines but you do not have to.
 		 */
-		Config config = new Config("client");
+		Config config = createConfig("client", componentName);
 		return new Client(componentName, config, in, out);
 	}
 
@@ -52,10 +57,39 @@ public class ComponentFactory {
 		 * instance. Depending on your code you might want to modify the
 		 * following lines but you do not have to.
 		 */
-		Config config = new Config("chatserver");
+		Config config = createConfig("chatserver", componentName);
+		// every scenario starts without registered addresses, history and mailboxes
+		Path data = Files.createTempDirectory("chatserver");
+		config.setProperty("addresses.dir", data.resolve("addresses").toString());
+		config.setProperty("history.dir", data.resolve("history").toString());
+		config.setProperty("mailbox.dir", data.resolve("mailboxes").toString());
 		return new Chatserver(componentName, config, in, out);
 	}
 
+	/**
+	 * Reads the configuration of a component. If the classpath contains a
+	 * {@code .properties} file named after the component, its keys override
+	 * the defaults, so that a scenario can start several chatservers on
+	 * different ports.
+	 *
+	 * @param defaults
+	 *            the name of the {@code .properties} file with the defaults
+	 * @param componentName
+	 *            the name of the component
+	 */
+	private static Config createConfig(String defaults, String componentName) {
+		Config config = new Config(defaults);
+		try {
+			ResourceBundle overrides = ResourceBundle.getBundle(componentName);
+			for (String key : overrides.keySet()) {
+				config.setProperty(key, overrides.getString(key));
+			}
+		} catch (MissingResourceException e) {
+			// no overrides for this component
+		}
+		return config;
+	}
+
 	// --- Methods needed for Lab 2. Please note that you do not have to
 	// use them for the first submission. ---
 